@@ -1,12 +1,17 @@
 package com.zhb.coap;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.eclipse.californium.core.CoapServer;
 import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.proxy.AdmissionMessageDeliverer;
 import org.eclipse.californium.proxy.DirectProxyCoapResolver;
 import org.eclipse.californium.proxy.ProxyHttpServer;
+import org.eclipse.californium.proxy.ProxyNetworkConfig;
 import org.eclipse.californium.proxy.resources.ForwardingResource;
 import org.eclipse.californium.proxy.resources.ProxyCoapClientResource;
 import org.eclipse.californium.proxy.resources.ProxyHttpClientResource;
@@ -31,6 +36,7 @@ public class ZHCoapService extends Service {
 	private static final int PORT = NetworkConfig.getStandard().getInt(NetworkConfig.Keys.COAP_PORT);
 	
 	private static CoapServer mCoapServer;
+	private AdmissionMessageDeliverer mDeliverer;
 	private ProxyHttpServer mHttpServer = null;
 	private ForwardingResource coap2coap = new ProxyCoapClientResource("coap2coap");
 	private ForwardingResource coap2http = new ProxyHttpClientResource("coap2http");
@@ -71,7 +77,15 @@ public class ZHCoapService extends Service {
 	 * 初始化CoapResource
 	 */
 	private void initCoapResource() {
+		// 注册代理配置项的默认值，读取时不再警告未定义的键
+		ProxyNetworkConfig.getStandard();
 		mCoapServer = new CoapServer(PORT);
+		// 限制同时处理的请求数，过载时返回5.03；排队的请求在服务器的线程池中执行
+		ScheduledExecutorService executor = Executors.newScheduledThreadPool(
+				NetworkConfig.getStandard().getInt(NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT));
+		mCoapServer.setExecutor(executor);
+		mDeliverer = new AdmissionMessageDeliverer(mCoapServer.getMessageDeliverer(), executor);
+		mCoapServer.setMessageDeliverer(mDeliverer);
 		mCoapServer.add(coap2coap);
 		mCoapServer.add(coap2http);
 		mQueryResource=new ZHQueryResource(getApplicationContext(),"query");
@@ -88,11 +102,17 @@ public class ZHCoapService extends Service {
 			stopCoapServer();
 			if (mHttpServer == null)
 				try {
+					// 代理缓存的第二层保存在缓存目录，进程重启后恢复
+					NetworkConfig.getStandard().setString("HTTP_CACHE_DISK_PATH",
+							new File(getCacheDir(), "proxy_cache").getAbsolutePath());
 					mHttpServer = new ProxyHttpServer(HTTP_SERVER_PROXY_PORT);
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
 			mHttpServer.setProxyCoapResolver(new DirectProxyCoapResolver(coap2coap));
+			// coap2coap和coap2http与http代理共用同一个缓存，命中时不访问网络
+			coap2coap.setCacheResource(mHttpServer.getCacheResource());
+			coap2http.setCacheResource(mHttpServer.getCacheResource());
 			mCoapServer.start();
 			if (DEBUG)
 				Log.d(TAG, "CoapServer start");
@@ -136,6 +156,13 @@ public class ZHCoapService extends Service {
 	
 	public void onDestroy() {
 		unregisterReceiver(connectReceiver);
+		// 释放服务器的线程池和排队请求的定时器
+		if (mCoapServer != null) {
+			mCoapServer.destroy();
+		}
+		if (mDeliverer != null) {
+			mDeliverer.shutdown();
+		}
 		super.onDestroy();
 	};
 }
@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Access log of the proxy. The request path only copies a few fields in a
+ * record of a preallocated ring, the records are formatted and handed to the
+ * logger by a background thread. When the ring is full the records are
+ * dropped and counted, so that a slow log never slows the requests down.
+ * Only one request out of ACCESS_LOG_SAMPLE_RATE is logged. The records are
+ * logged at {@link Level#FINE}, so nothing is recorded at all unless the level
+ * of the access logger is lowered.
+ */
+public final class AccessLog {
+
+	/** The events logged. */
+	public enum Event {
+		/** A request received by the proxy. */
+		REQUEST,
+		/** A request answered from the cache. */
+		CACHE_HIT,
+		/** A response received from the server. */
+		UPSTREAM,
+		/** A response sent to the http client. */
+		RESPONSE
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(AccessLog.class.getCanonicalName());
+
+	private static final int BUFFER_SIZE = ProxyNetworkConfig.getStandard().getInt(
+			"ACCESS_LOG_BUFFER_SIZE");
+	private static final int SAMPLE_RATE = ProxyNetworkConfig.getStandard().getInt(
+			"ACCESS_LOG_SAMPLE_RATE"); // log 1 request out of n
+	private static final int FLUSH_INTERVAL = ProxyNetworkConfig.getStandard().getInt(
+			"ACCESS_LOG_FLUSH_INTERVAL"); // [milliseconds]
+
+	private static final AccessLog STANDARD = new AccessLog(BUFFER_SIZE, SAMPLE_RATE, FLUSH_INTERVAL);
+
+	private final Record[] ring;
+	private final int mask;
+	private final int sampleRate;
+	private final long flushInterval;
+
+	/** The next sequence to claim. */
+	private final AtomicLong next = new AtomicLong();
+	/** The next sequence to format, written by the log thread only. */
+	private final AtomicLong consumed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	private AccessLog(int bufferSize, int sampleRate, long flushInterval) {
+		// a power of two, so that the slot is a mask of the sequence
+		int size = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+		this.ring = new Record[size];
+		for (int i = 0; i < size; i++) {
+			ring[i] = new Record(i - size);
+		}
+		this.mask = size - 1;
+		this.sampleRate = Math.max(1, sampleRate);
+		this.flushInterval = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+
+		Thread writer = new Thread("AccessLog writer") {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @return the access log of the proxy
+	 */
+	public static AccessLog getStandard() {
+		return STANDARD;
+	}
+
+	/**
+	 * @return true, if the access logger is enabled
+	 */
+	public boolean isEnabled() {
+		return LOGGER.isLoggable(Level.FINE);
+	}
+
+	/**
+	 * Decides whether the events of a request are logged. The decision
+	 * depends on the identity of the request only, so that all the events of
+	 * a request sampled are logged, at any stage.
+	 *
+	 * @param request
+	 *            the request
+	 * @return true, if the request is part of the sample
+	 */
+	public boolean sample(Object request) {
+		return isEnabled() && (sampleRate == 1 || (System.identityHashCode(request) & Integer.MAX_VALUE) % sampleRate == 0);
+	}
+
+	/**
+	 * Records an event. The arguments are referenced as they are, so the
+	 * caller must not build them for the log only.
+	 *
+	 * @param event
+	 *            the event
+	 * @param target
+	 *            the uri concerned, may be null
+	 * @param code
+	 *            the method or the response code, may be null
+	 * @param latency
+	 *            the latency in nanoseconds, or 0
+	 */
+	public void log(Event event, String target, Enum<?> code, long latency) {
+		long sequence;
+		do {
+			sequence = next.get();
+			if (sequence - consumed.get() >= ring.length) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!next.compareAndSet(sequence, sequence + 1));
+
+		Record record = ring[(int) sequence & mask];
+		record.time = System.currentTimeMillis();
+		record.event = event;
+		record.target = target;
+		record.code = code;
+		record.latency = latency;
+		// publish the record to the log thread
+		record.sequence = sequence;
+	}
+
+	/**
+	 * @return the number of records lost because the ring was full
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	private void drain() {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+		Date date = new Date();
+		StringBuilder builder = new StringBuilder(256);
+		long reportedDrops = 0;
+		while (true) {
+			long sequence = consumed.get();
+			Record record = ring[(int) sequence & mask];
+			if (record.sequence != sequence) {
+				long drops = dropped.get();
+				if (drops != reportedDrops) {
+					LOGGER.warning("Access log full, " + (drops - reportedDrops) + " records dropped");
+					reportedDrops = drops;
+				}
+				LockSupport.parkNanos(flushInterval);
+				continue;
+			}
+
+			date.setTime(record.time);
+			builder.setLength(0);
+			builder.append(dateFormat.format(date)).append(' ').append(record.event);
+			if (record.code != null) {
+				builder.append(' ').append(record.code);
+			}
+			if (record.target != null) {
+				builder.append(' ').append(record.target);
+			}
+			if (record.latency > 0) {
+				builder.append(' ').append(TimeUnit.NANOSECONDS.toMicros(record.latency)).append("us");
+			}
+			// release the references before the slot is reused
+			record.target = null;
+			record.code = null;
+			consumed.lazySet(sequence + 1);
+
+			LOGGER.fine(builder.toString());
+		}
+	}
+
+	/**
+	 * A slot of the ring, reused for the whole life of the log.
+	 */
+	private static final class Record {
+		/** The sequence of the record, written last by the producer. */
+		volatile long sequence;
+		long time;
+		Event event;
+		String target;
+		Enum<?> code;
+		long latency;
+
+		Record(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+}
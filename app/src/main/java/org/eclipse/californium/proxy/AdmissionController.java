@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+
+/**
+ * Bounds the work in progress of a front door of the proxy. At most
+ * maxInFlight tickets are executed at the same time, the following ones wait
+ * in a bounded queue and the ones that do not fit in the queue are rejected.
+ * A queued ticket that is not started before its deadline is shed instead of
+ * being executed, since its client has probably given up already. The
+ * deadlines are enforced by a timer if one is given, otherwise only when a
+ * ticket is admitted or a slot is released.
+ */
+public class AdmissionController {
+
+	private static final Logger LOGGER = Logger.getLogger(AdmissionController.class.getCanonicalName());
+
+	/**
+	 * The outcome of the admission of a ticket.
+	 */
+	public enum Decision {
+		/** The ticket has been handed to the executor. */
+		ADMITTED,
+		/** The ticket waits for a free slot. */
+		QUEUED,
+		/** The ticket has been refused, the caller must answer overload. */
+		REJECTED
+	}
+
+	private final String name;
+	private final Executor executor;
+	private final HashedWheelTimer timer;
+	private final int maxInFlight;
+	private final int queueCapacity;
+	private final long queueTimeoutNanos;
+
+	private final ArrayDeque<Ticket> queue = new ArrayDeque<Ticket>();
+	private int inFlight = 0;
+
+	private final AtomicLong admittedCount = new AtomicLong();
+	private final AtomicLong queuedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong shedCount = new AtomicLong();
+
+	/**
+	 * Instantiates a new admission controller.
+	 *
+	 * @param name
+	 *            the name of the front door, used for logging
+	 * @param executor
+	 *            the executor running the admitted tickets
+	 * @param maxInFlight
+	 *            the maximum number of tickets executed at the same time
+	 * @param queueCapacity
+	 *            the maximum number of waiting tickets
+	 * @param queueTimeout
+	 *            the maximum time in milliseconds a ticket can wait
+	 */
+	public AdmissionController(String name, Executor executor, int maxInFlight, int queueCapacity, long queueTimeout) {
+		this(name, executor, null, maxInFlight, queueCapacity, queueTimeout);
+	}
+
+	/**
+	 * Instantiates a new admission controller.
+	 *
+	 * @param name
+	 *            the name of the front door, used for logging
+	 * @param executor
+	 *            the executor running the admitted tickets
+	 * @param timer
+	 *            the timer shedding the tickets at their deadline, null to
+	 *            shed them only when the queue moves
+	 * @param maxInFlight
+	 *            the maximum number of tickets executed at the same time
+	 * @param queueCapacity
+	 *            the maximum number of waiting tickets
+	 * @param queueTimeout
+	 *            the maximum time in milliseconds a ticket can wait
+	 */
+	public AdmissionController(String name, Executor executor, HashedWheelTimer timer, int maxInFlight,
+			int queueCapacity, long queueTimeout) {
+		if (executor == null) {
+			throw new IllegalArgumentException("executor == null");
+		}
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("maxInFlight <= 0");
+		}
+		this.name = name;
+		this.executor = executor;
+		this.timer = timer;
+		this.maxInFlight = maxInFlight;
+		this.queueCapacity = Math.max(0, queueCapacity);
+		this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+	}
+
+	/**
+	 * Submits a ticket. An admitted ticket is started on the executor, a
+	 * queued one is started when a slot is released, a rejected one is never
+	 * started and never shed.
+	 *
+	 * @param ticket
+	 *            the ticket
+	 * @return the decision taken for the ticket
+	 */
+	public Decision admit(Ticket ticket) {
+		if (ticket == null) {
+			throw new IllegalArgumentException("ticket == null");
+		}
+		ticket.controller = this;
+
+		List<Ticket> expired = new LinkedList<Ticket>();
+		Decision decision;
+		synchronized (this) {
+			pollExpired(System.nanoTime(), expired);
+			if (inFlight < maxInFlight) {
+				inFlight++;
+				decision = Decision.ADMITTED;
+			} else if (queue.size() < queueCapacity) {
+				ticket.deadline = System.nanoTime() + queueTimeoutNanos;
+				queue.addLast(ticket);
+				decision = Decision.QUEUED;
+			} else {
+				decision = Decision.REJECTED;
+			}
+		}
+		shed(expired);
+
+		switch (decision) {
+		case ADMITTED:
+			admittedCount.incrementAndGet();
+			start(ticket);
+			break;
+		case QUEUED:
+			queuedCount.incrementAndGet();
+			LOGGER.finer(name + " saturated, request queued");
+			scheduleDeadline(ticket);
+			break;
+		default:
+			rejectedCount.incrementAndGet();
+			LOGGER.warning(name + " overloaded, request rejected");
+			break;
+		}
+		return decision;
+	}
+
+	/**
+	 * Releases a slot and starts the first queued ticket whose deadline has not
+	 * passed yet. The expired tickets met on the way are shed.
+	 */
+	private void release() {
+		List<Ticket> expired = new LinkedList<Ticket>();
+		Ticket next = null;
+		synchronized (this) {
+			inFlight--;
+			pollExpired(System.nanoTime(), expired);
+			next = queue.pollFirst();
+			if (next != null) {
+				inFlight++;
+			}
+		}
+		shed(expired);
+		if (next != null) {
+			HashedWheelTimer.Timeout deadlineHandle = next.deadlineHandle;
+			if (deadlineHandle != null) {
+				deadlineHandle.cancel();
+			}
+			admittedCount.incrementAndGet();
+			start(next);
+		}
+	}
+
+	/**
+	 * Sheds a queued ticket at its deadline, even if no other ticket comes.
+	 */
+	private void scheduleDeadline(final Ticket ticket) {
+		if (timer == null) {
+			return;
+		}
+		ticket.deadlineHandle = timer.newTimeout(new Runnable() {
+			public void run() {
+				boolean removed;
+				synchronized (AdmissionController.this) {
+					removed = queue.remove(ticket);
+				}
+				if (removed) {
+					List<Ticket> expired = new LinkedList<Ticket>();
+					expired.add(ticket);
+					shed(expired);
+				}
+			}
+		}, queueTimeoutNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private void pollExpired(long now, List<Ticket> expired) {
+		Ticket head;
+		while ((head = queue.peekFirst()) != null && head.deadline - now <= 0) {
+			expired.add(queue.pollFirst());
+		}
+	}
+
+	private void shed(List<Ticket> expired) {
+		for (Ticket ticket : expired) {
+			shedCount.incrementAndGet();
+			LOGGER.warning(name + " shed a request that waited too long");
+			ticket.shed();
+		}
+	}
+
+	private void start(final Ticket ticket) {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					ticket.start();
+				}
+			});
+		} catch (RuntimeException e) {
+			// the executor refused the task, e.g., because it is shut down
+			LOGGER.warning(name + " cannot execute the request: " + e.getMessage());
+			ticket.started = true;
+			ticket.finish();
+			ticket.shed();
+		}
+	}
+
+	/**
+	 * @return the number of tickets currently executed
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return the number of tickets currently waiting
+	 */
+	public synchronized int getQueueLength() {
+		return queue.size();
+	}
+
+	/**
+	 * @return true, if a new ticket would be rejected
+	 */
+	public synchronized boolean isSaturated() {
+		return inFlight >= maxInFlight && queue.size() >= queueCapacity;
+	}
+
+	public long getAdmittedCount() {
+		return admittedCount.get();
+	}
+
+	public long getQueuedCount() {
+		return queuedCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public long getShedCount() {
+		return shedCount.get();
+	}
+
+	/**
+	 * A unit of work submitted to the controller. The work holds a slot from
+	 * the moment it is started to the moment {@link #finish()} is called.
+	 * Calling {@link #finish()} before the ticket is started, e.g., because the
+	 * client went away while the ticket was queued, prevents the execution and
+	 * frees the slot as soon as the ticket leaves the queue.
+	 */
+	public static abstract class Ticket {
+		private final AtomicBoolean released = new AtomicBoolean();
+		private volatile boolean started;
+		private volatile boolean finished;
+		private volatile AdmissionController controller;
+		private volatile HashedWheelTimer.Timeout deadlineHandle;
+		private long deadline;
+
+		/**
+		 * Executes the admitted work.
+		 */
+		protected abstract void execute();
+
+		/**
+		 * Answers the request of a ticket shed from the queue.
+		 */
+		protected abstract void shed();
+
+		/**
+		 * Signals that the work of the ticket is over and releases its slot.
+		 */
+		public final void finish() {
+			finished = true;
+			releaseSlot();
+		}
+
+		private void start() {
+			started = true;
+			if (finished) {
+				releaseSlot();
+				return;
+			}
+			execute();
+		}
+
+		private void releaseSlot() {
+			AdmissionController owner = controller;
+			if (started && owner != null && released.compareAndSet(false, true)) {
+				owner.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,311 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.observe.ObserveRelation;
+import org.eclipse.californium.core.server.MessageDeliverer;
+
+
+/**
+ * Message deliverer that puts the coap server behind an
+ * {@link AdmissionController}. The requests are delivered to the wrapped
+ * deliverer only when a slot is free, the slot is released when the resource
+ * responds, which the deliverer sees through a wrapper of the exchange. When
+ * the server is overloaded the request is answered with 5.03 and a max-age
+ * telling the client when to retry.
+ * <p>
+ * The deliverer has no threads of its own: a request admitted at once is
+ * delivered on the thread of the server that received it, a queued request on
+ * the executor of the server when a slot is released.
+ */
+public class AdmissionMessageDeliverer implements MessageDeliverer {
+
+	private static final Logger LOGGER = Logger.getLogger(AdmissionMessageDeliverer.class.getCanonicalName());
+
+	private static final int MAX_IN_FLIGHT = ProxyNetworkConfig.getStandard().getInt(
+			"COAP_SERVER_MAX_IN_FLIGHT");
+	private static final int QUEUE_CAPACITY = ProxyNetworkConfig.getStandard().getInt(
+			"COAP_SERVER_QUEUE_CAPACITY");
+	private static final int QUEUE_TIMEOUT = ProxyNetworkConfig.getStandard().getInt(
+			"COAP_SERVER_QUEUE_TIMEOUT");
+	private static final int OVERLOAD_MAX_AGE = ProxyNetworkConfig.getStandard().getInt(
+			"COAP_SERVER_OVERLOAD_MAX_AGE");
+
+	private final MessageDeliverer deliverer;
+	private final Executor executor;
+	private final HashedWheelTimer timer;
+	private final AdmissionController admissionController;
+
+	/** Set while a request is delivered, so that it is admitted inline. */
+	private final ThreadLocal<Boolean> delivering = new ThreadLocal<Boolean>();
+
+	/**
+	 * Instantiates a new admission message deliverer with the limits from the
+	 * standard configuration.
+	 *
+	 * @param deliverer
+	 *            the deliverer of the coap server
+	 * @param executor
+	 *            the executor of the coap server, see
+	 *            {@link org.eclipse.californium.core.CoapServer#setExecutor}
+	 */
+	public AdmissionMessageDeliverer(MessageDeliverer deliverer, Executor executor) {
+		this(deliverer, executor, MAX_IN_FLIGHT, QUEUE_CAPACITY, QUEUE_TIMEOUT);
+	}
+
+	/**
+	 * Instantiates a new admission message deliverer.
+	 *
+	 * @param deliverer
+	 *            the deliverer of the coap server
+	 * @param executor
+	 *            the executor of the coap server, see
+	 *            {@link org.eclipse.californium.core.CoapServer#setExecutor}
+	 * @param maxInFlight
+	 *            the maximum number of requests handled at the same time
+	 * @param queueCapacity
+	 *            the maximum number of requests waiting for a slot
+	 * @param queueTimeout
+	 *            the maximum time in milliseconds a request can wait
+	 */
+	public AdmissionMessageDeliverer(MessageDeliverer deliverer, Executor executor, int maxInFlight,
+			int queueCapacity, int queueTimeout) {
+		if (deliverer == null) {
+			throw new IllegalArgumentException("deliverer == null");
+		}
+		if (executor == null) {
+			throw new IllegalArgumentException("executor == null");
+		}
+		this.deliverer = deliverer;
+		this.executor = executor;
+		this.timer = new HashedWheelTimer("CoapServer admission", 100, 512);
+		this.admissionController = new AdmissionController("CoapServer", new DeliveryExecutor(), timer,
+				maxInFlight, queueCapacity, queueTimeout);
+	}
+
+	public void deliverRequest(Exchange exchange) {
+		final RequestTicket ticket = new RequestTicket(exchange);
+
+		// the slot is released at the first response, see AdmittedExchange,
+		// or when the exchange fails
+		exchange.getRequest().addMessageObserver(new MessageObserverAdapter() {
+			@Override
+			public void onCancel() {
+				ticket.finish();
+			}
+
+			@Override
+			public void onTimeout() {
+				ticket.finish();
+			}
+
+			@Override
+			public void onReject() {
+				ticket.finish();
+			}
+		});
+
+		AdmissionController.Decision decision;
+		delivering.set(Boolean.TRUE);
+		try {
+			decision = admissionController.admit(ticket);
+		} finally {
+			delivering.remove();
+		}
+		if (decision == AdmissionController.Decision.REJECTED) {
+			sendOverloadResponse(exchange);
+		}
+	}
+
+	public void deliverResponse(Exchange exchange, Response response) {
+		deliverer.deliverResponse(exchange, response);
+	}
+
+	/**
+	 * @return the admission controller bounding the work of the coap server
+	 */
+	public AdmissionController getAdmissionController() {
+		return admissionController;
+	}
+
+	/**
+	 * Stops the timer of the queued requests. The executor belongs to the
+	 * server, which shuts it down.
+	 */
+	public void shutdown() {
+		timer.stop();
+	}
+
+	private static void sendOverloadResponse(Exchange exchange) {
+		Response response = new Response(CoapTranslator.STATUS_SERVICE_UNAVAILABLE);
+		response.getOptions().setMaxAge(OVERLOAD_MAX_AGE);
+		exchange.sendResponse(response);
+	}
+
+	/**
+	 * Runs the ticket admitted by {@link #deliverRequest(Exchange)} on the
+	 * delivering thread, and the tickets started when a slot is released on
+	 * the executor of the server, so that a response never delivers the next
+	 * request on its own thread.
+	 */
+	private final class DeliveryExecutor implements Executor {
+
+		public void execute(Runnable command) {
+			if (delivering.get() != null) {
+				// only the ticket being delivered, not the ones it releases
+				delivering.remove();
+				command.run();
+			} else {
+				executor.execute(command);
+			}
+		}
+	}
+
+	/**
+	 * Admission ticket of a coap exchange.
+	 */
+	private final class RequestTicket extends AdmissionController.Ticket {
+		private final Exchange exchange;
+
+		public RequestTicket(Exchange exchange) {
+			this.exchange = exchange;
+		}
+
+		@Override
+		protected void execute() {
+			AdmittedExchange admitted = new AdmittedExchange(exchange, this);
+			try {
+				deliverer.deliverRequest(admitted);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Request delivery failed", e);
+				if (exchange.getResponse() == null) {
+					admitted.sendResponse(new Response(ResponseCode.INTERNAL_SERVER_ERROR));
+				} else {
+					finish();
+				}
+			}
+		}
+
+		@Override
+		protected void shed() {
+			LOGGER.finer("Request waited too long: " + exchange.getRequest().getMID());
+			sendOverloadResponse(exchange);
+		}
+	}
+
+	/**
+	 * The exchange given to the resources: everything is done on the exchange
+	 * of the endpoint, and the first response or reject releases the slot.
+	 * The first response is enough since the observe notifications reuse the
+	 * same exchange. The observe relation is kept on the exchange of the
+	 * endpoint, where the observe layer looks for it.
+	 */
+	private static final class AdmittedExchange extends Exchange {
+		private final Exchange exchange;
+		private final AdmissionController.Ticket ticket;
+
+		AdmittedExchange(Exchange exchange, AdmissionController.Ticket ticket) {
+			super(exchange.getRequest(), exchange.getOrigin(), exchange.getCorrelationContext());
+			this.exchange = exchange;
+			this.ticket = ticket;
+		}
+
+		@Override
+		public void sendAccept() {
+			exchange.sendAccept();
+		}
+
+		@Override
+		public void sendReject() {
+			try {
+				exchange.sendReject();
+			} finally {
+				ticket.finish();
+			}
+		}
+
+		@Override
+		public void sendResponse(Response response) {
+			try {
+				exchange.sendResponse(response);
+			} finally {
+				ticket.finish();
+			}
+		}
+
+		@Override
+		public Request getRequest() {
+			return exchange.getRequest();
+		}
+
+		@Override
+		public Request getCurrentRequest() {
+			return exchange.getCurrentRequest();
+		}
+
+		@Override
+		public Response getResponse() {
+			return exchange.getResponse();
+		}
+
+		@Override
+		public Endpoint getEndpoint() {
+			return exchange.getEndpoint();
+		}
+
+		@Override
+		public ObserveRelation getRelation() {
+			return exchange.getRelation();
+		}
+
+		@Override
+		public void setRelation(ObserveRelation relation) {
+			exchange.setRelation(relation);
+		}
+
+		@Override
+		public boolean isComplete() {
+			return exchange.isComplete();
+		}
+
+		@Override
+		public void setComplete() {
+			exchange.setComplete();
+		}
+
+		@Override
+		public boolean hasCustomExecutor() {
+			return exchange.hasCustomExecutor();
+		}
+
+		@Override
+		public void setCustomExecutor() {
+			exchange.setCustomExecutor();
+		}
+	}
+}
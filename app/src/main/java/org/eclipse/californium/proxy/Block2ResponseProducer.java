@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.entity.BasicHttpEntity;
+import cz.msebera.android.httpclient.nio.ContentEncoder;
+import cz.msebera.android.httpclient.nio.IOControl;
+import cz.msebera.android.httpclient.nio.protocol.HttpAsyncResponseProducer;
+import cz.msebera.android.httpclient.protocol.HttpContext;
+
+
+/**
+ * Response producer relaying a Block2 transfer to the http client. The headers
+ * and the first block are sent as soon as the first block arrives, then every
+ * block is requested only when the previous one has been written, so that a
+ * single block per exchange is held in memory. The entity has no length,
+ * hence the connection writes it through the chunk encoder.
+ */
+public class Block2ResponseProducer implements HttpAsyncResponseProducer, Block2Stream.Listener {
+
+	private static final Logger LOGGER = Logger.getLogger(Block2ResponseProducer.class.getCanonicalName());
+
+	private final HttpResponse httpResponse;
+	private final Block2Stream blockStream;
+
+	// guarded by this
+	private ByteBuffer block;
+	private boolean more = true;
+	private boolean fetching;
+	private boolean failed;
+	private IOControl ioControl;
+
+	/**
+	 * Instantiates a new producer.
+	 *
+	 * @param httpResponse
+	 *            the translated response, whose entity is replaced
+	 * @param firstBlock
+	 *            the payload of the first block
+	 * @param blockStream
+	 *            the stream of the following blocks
+	 */
+	public Block2ResponseProducer(HttpResponse httpResponse, byte[] firstBlock, Block2Stream blockStream) {
+		this.httpResponse = httpResponse;
+		this.blockStream = blockStream;
+		this.block = ByteBuffer.wrap(firstBlock == null ? new byte[0] : firstBlock);
+
+		BasicHttpEntity entity = new BasicHttpEntity();
+		entity.setContentLength(-1);
+		entity.setChunked(true);
+		if (httpResponse.getEntity() != null) {
+			entity.setContentType(httpResponse.getEntity().getContentType());
+		}
+		httpResponse.setEntity(entity);
+	}
+
+	public HttpResponse generateResponse() {
+		return httpResponse;
+	}
+
+	public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+		boolean fetch = false;
+		synchronized (this) {
+			if (failed) {
+				// a truncated chunked body is signalled by closing the
+				// connection without the last chunk
+				ioctrl.shutdown();
+				return;
+			}
+			ioControl = ioctrl;
+			if (block != null && block.hasRemaining()) {
+				encoder.write(block);
+				if (block.hasRemaining()) {
+					return;
+				}
+			}
+			block = null;
+			if (!more) {
+				encoder.complete();
+				return;
+			}
+			// nothing to write until the next block arrives
+			ioctrl.suspendOutput();
+			if (!fetching) {
+				fetching = true;
+				fetch = true;
+			}
+		}
+		if (fetch) {
+			blockStream.requestNext(this);
+		}
+	}
+
+	public void onBlock(byte[] payload, boolean more) {
+		IOControl control;
+		synchronized (this) {
+			fetching = false;
+			this.block = ByteBuffer.wrap(payload == null ? new byte[0] : payload);
+			this.more = more;
+			control = ioControl;
+		}
+		if (control != null) {
+			control.requestOutput();
+		}
+	}
+
+	public void onError() {
+		IOControl control;
+		synchronized (this) {
+			fetching = false;
+			failed = true;
+			control = ioControl;
+		}
+		LOGGER.warning("Block2 transfer failed, closing the http connection");
+		if (control != null) {
+			control.requestOutput();
+		}
+	}
+
+	public void responseCompleted(HttpContext context) {
+		LOGGER.finer("Block2 transfer relayed");
+	}
+
+	public void failed(Exception ex) {
+		blockStream.cancel();
+	}
+
+	public void close() throws IOException {
+		synchronized (this) {
+			block = null;
+		}
+		if (more) {
+			blockStream.cancel();
+		}
+	}
+}
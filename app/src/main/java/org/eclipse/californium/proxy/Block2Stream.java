@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+
+
+/**
+ * Fetches the blocks following the first one of a Block2 transfer, one at a
+ * time and only when the consumer asks for them, so that a large resource can
+ * be relayed without reassembling it. The requests are sent through a
+ * dedicated endpoint on which the transparent blockwise handling is disabled,
+ * since the blockwise layer of the default endpoint would collect the whole
+ * body before delivering the first block.
+ */
+public class Block2Stream {
+
+	private static final Logger LOGGER = Logger.getLogger(Block2Stream.class.getCanonicalName());
+
+	/** Key of the user context marking the requests that accept a stream. */
+	private static final String STREAMING_KEY = "proxy.stream";
+
+	private static Endpoint endpoint;
+
+	/**
+	 * Receives the blocks requested with {@link Block2Stream#requestNext}.
+	 */
+	public interface Listener {
+
+		/**
+		 * Delivers the payload of the next block.
+		 *
+		 * @param payload
+		 *            the payload
+		 * @param more
+		 *            true, if other blocks follow
+		 */
+		void onBlock(byte[] payload, boolean more);
+
+		/**
+		 * Signals that the transfer cannot be completed.
+		 */
+		void onError();
+	}
+
+	private final Request template;
+	private final int szx;
+	private final byte[] etag;
+	private volatile int nextNum;
+	private volatile Request current;
+	private volatile boolean cancelled;
+
+	/**
+	 * Instantiates a new stream from the first block of the transfer.
+	 *
+	 * @param request
+	 *            the request that obtained the first block
+	 * @param firstBlock
+	 *            the response carrying the first block
+	 */
+	public Block2Stream(Request request, Response firstBlock) {
+		BlockOption block2 = firstBlock.getOptions().getBlock2();
+		this.template = request;
+		this.szx = block2.getSzx();
+		this.nextNum = block2.getNum() + 1;
+		List<byte[]> etags = firstBlock.getOptions().getETags();
+		this.etag = etags.isEmpty() ? null : etags.get(0);
+	}
+
+	/**
+	 * Marks a request as issued by a client that can receive a streamed
+	 * response.
+	 *
+	 * @param request
+	 *            the request
+	 */
+	public static void acceptStreaming(Request request) {
+		Map<String, String> context = new HashMap<String, String>();
+		if (request.getUserContext() != null) {
+			context.putAll(request.getUserContext());
+		}
+		context.put(STREAMING_KEY, Boolean.TRUE.toString());
+		request.setUserContext(context);
+	}
+
+	/**
+	 * @return true, if the response to the request can be streamed
+	 */
+	public static boolean isStreamingAccepted(Request request) {
+		Map<String, String> context = request.getUserContext();
+		return request.getCode() == Code.GET && context != null && context.containsKey(STREAMING_KEY);
+	}
+
+	/**
+	 * Gets the endpoint without transparent blockwise handling, creating it at
+	 * the first call.
+	 *
+	 * @return the endpoint
+	 * @throws IOException
+	 *             if the endpoint cannot be started
+	 */
+	public static synchronized Endpoint getEndpoint() throws IOException {
+		if (endpoint == null) {
+			NetworkConfig config = new NetworkConfig();
+			config.setInt(NetworkConfig.Keys.MAX_RESOURCE_BODY_SIZE, 0);
+			config.setInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE, NetworkConfig.getStandard().getInt(
+					NetworkConfig.Keys.PREFERRED_BLOCK_SIZE));
+			Endpoint streamingEndpoint = new CoapEndpoint(config);
+			streamingEndpoint.start();
+			endpoint = streamingEndpoint;
+		}
+		return endpoint;
+	}
+
+	/**
+	 * Requests the next block. The listener is called once, when the block
+	 * arrives or when the transfer fails.
+	 *
+	 * @param listener
+	 *            the listener
+	 */
+	public void requestNext(final Listener listener) {
+		if (cancelled) {
+			listener.onError();
+			return;
+		}
+		Request request = new Request(Code.GET);
+		request.setDestination(template.getDestination());
+		request.setDestinationPort(template.getDestinationPort());
+		request.setOptions(new OptionSet(template.getOptions()));
+		request.getOptions().removeObserve();
+		request.getOptions().setBlock2(szx, false, nextNum);
+
+		request.addMessageObserver(new MessageObserverAdapter() {
+			@Override
+			public void onResponse(Response response) {
+				BlockOption block2 = response.getOptions().getBlock2();
+				if (response.getCode() != ResponseCode.CONTENT || block2 == null || block2.getNum() != nextNum
+						|| !sameEntity(response)) {
+					LOGGER.warning("Block2 transfer interrupted by " + response);
+					listener.onError();
+					return;
+				}
+				nextNum++;
+				listener.onBlock(response.getPayload(), block2.isM());
+			}
+
+			@Override
+			public void onTimeout() {
+				LOGGER.warning("Timeout while fetching block " + nextNum);
+				listener.onError();
+			}
+
+			@Override
+			public void onReject() {
+				listener.onError();
+			}
+
+			@Override
+			public void onCancel() {
+				listener.onError();
+			}
+		});
+
+		current = request;
+		try {
+			request.send(getEndpoint());
+		} catch (IOException e) {
+			LOGGER.warning("Cannot fetch the next block: " + e.getMessage());
+			listener.onError();
+		}
+	}
+
+	/**
+	 * Stops the transfer, the pending request is cancelled.
+	 */
+	public void cancel() {
+		cancelled = true;
+		Request request = current;
+		if (request != null && !request.isCanceled() && request.getResponse() == null) {
+			request.cancel();
+		}
+	}
+
+	/**
+	 * Checks that the block belongs to the same representation of the first
+	 * one, i.e., the resource has not changed in the meantime.
+	 */
+	private boolean sameEntity(Response response) {
+		if (etag == null) {
+			return true;
+		}
+		List<byte[]> etags = response.getOptions().getETags();
+		return !etags.isEmpty() && Arrays.equals(etag, etags.get(0));
+	}
+}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cz.msebera.android.httpclient.ContentTooLongException;
+import cz.msebera.android.httpclient.HttpEntity;
+import cz.msebera.android.httpclient.HttpEntityEnclosingRequest;
+import cz.msebera.android.httpclient.HttpRequest;
+import cz.msebera.android.httpclient.entity.AbstractHttpEntity;
+import cz.msebera.android.httpclient.entity.ContentType;
+import cz.msebera.android.httpclient.nio.ContentDecoder;
+import cz.msebera.android.httpclient.nio.IOControl;
+import cz.msebera.android.httpclient.nio.protocol.AbstractAsyncRequestConsumer;
+import cz.msebera.android.httpclient.protocol.HttpContext;
+
+
+/**
+ * Request consumer that reads the http entity into a single array. The array
+ * starts small and grows as the content arrives, up to the content length
+ * declared, so that a client cannot reserve memory it does not send. The
+ * arrays of the bodies still being read are counted against a budget shared
+ * by all the connections: a body that would exceed it fails the request with
+ * an {@link OverloadException}, answered with 503 (Service Unavailable) by the
+ * http stack. The body read is handed to the translator as a
+ * {@link PayloadEntity}, whose content becomes the coap payload without
+ * further copies.
+ */
+public class BufferedRequestConsumer extends AbstractAsyncRequestConsumer<HttpRequest> {
+
+	private static final int MAX_BODY_SIZE = ProxyNetworkConfig.getStandard().getInt(
+			"HTTP_SERVER_MAX_BODY_SIZE");
+	private static final long MAX_BUFFERED_BYTES = ProxyNetworkConfig.getStandard().getInt(
+			"HTTP_SERVER_MAX_BUFFERED_BYTES");
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+
+	// bytes of the arrays of all the bodies being read
+	private static final AtomicLong buffered = new AtomicLong();
+
+	private volatile HttpRequest request;
+	private volatile HttpEntity entity;
+	private volatile long start;
+
+	private byte[] buffer;
+	private int count;
+	private long expected;
+	private long reserved;
+
+	@Override
+	protected void onRequestReceived(HttpRequest request) throws IOException {
+		this.request = request;
+		this.start = System.nanoTime();
+	}
+
+	@Override
+	protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+		expected = entity.getContentLength();
+		if (expected > MAX_BODY_SIZE) {
+			throw new ContentTooLongException("Entity content is too long: " + expected);
+		}
+		this.entity = entity;
+		// the content length is not trusted to size the array
+		int size = expected < 0 ? INITIAL_BUFFER_SIZE : (int) Math.min(expected, INITIAL_BUFFER_SIZE);
+		reserve(size);
+		buffer = new byte[size];
+	}
+
+	@Override
+	protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+		if (count == buffer.length) {
+			grow();
+		}
+		int read = decoder.read(ByteBuffer.wrap(buffer, count, buffer.length - count));
+		if (read > 0) {
+			count += read;
+		}
+		if (count > MAX_BODY_SIZE) {
+			throw new ContentTooLongException("Entity content is too long: " + count);
+		}
+	}
+
+	@Override
+	protected HttpRequest buildResult(HttpContext context) throws IOException {
+		if (entity != null) {
+			PayloadEntity payloadEntity = new PayloadEntity(buffer, count);
+			payloadEntity.setContentType(entity.getContentType());
+			payloadEntity.setContentEncoding(entity.getContentEncoding());
+			((HttpEntityEnclosingRequest) request).setEntity(payloadEntity);
+		}
+		LatencyStats.getStandard().record(LatencyStats.Stage.HTTP_PARSING, start);
+		return request;
+	}
+
+	@Override
+	protected void releaseResources() {
+		// the body read is bounded by the admission control from now on
+		buffered.addAndGet(-reserved);
+		reserved = 0;
+		buffer = null;
+		entity = null;
+	}
+
+	private void grow() throws IOException {
+		// up to the length declared if the body is not longer, otherwise one
+		// byte more than allowed to detect the bodies too long
+		int limit = count < expected ? (int) expected : MAX_BODY_SIZE + 1;
+		int size = Math.min(Math.max(buffer.length * 2, INITIAL_BUFFER_SIZE), limit);
+		reserve(size - buffer.length);
+		byte[] larger = new byte[size];
+		System.arraycopy(buffer, 0, larger, 0, count);
+		buffer = larger;
+	}
+
+	private void reserve(int bytes) throws OverloadException {
+		if (buffered.addAndGet(bytes) > MAX_BUFFERED_BYTES) {
+			buffered.addAndGet(-bytes);
+			throw new OverloadException("Too many request bodies buffered");
+		}
+		reserved += bytes;
+	}
+
+	/**
+	 * Exception thrown when the budget of the bodies being read is exhausted.
+	 */
+	static final class OverloadException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		OverloadException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Entity holding a request body read by the consumer. The translator takes
+	 * its content as coap payload through {@link #getPayload()}.
+	 */
+	static final class PayloadEntity extends AbstractHttpEntity {
+		private byte[] payload;
+		private final int length;
+
+		PayloadEntity(byte[] buffer, int length) {
+			this.payload = buffer;
+			this.length = length;
+		}
+
+		/**
+		 * Gets the body as a single array. The array read is returned as it
+		 * is when it has the exact length of the body.
+		 *
+		 * @return the body
+		 */
+		synchronized byte[] getPayload() {
+			if (payload.length != length) {
+				byte[] exact = new byte[length];
+				System.arraycopy(payload, 0, exact, 0, length);
+				payload = exact;
+			}
+			return payload;
+		}
+
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		public long getContentLength() {
+			return length;
+		}
+
+		public synchronized InputStream getContent() {
+			return new ByteArrayInputStream(payload, 0, length);
+		}
+
+		public void writeTo(OutputStream outstream) throws IOException {
+			InputStream instream = getContent();
+			try {
+				byte[] chunk = new byte[INITIAL_BUFFER_SIZE];
+				int read;
+				while ((read = instream.read(chunk)) != -1) {
+					outstream.write(chunk, 0, read);
+				}
+			} finally {
+				instream.close();
+			}
+		}
+
+		public boolean isStreaming() {
+			return false;
+		}
+	}
+}
@@ -50,6 +50,7 @@ public final class CoapTranslator {
 	public static final ResponseCode STATUS_FIELD_MALFORMED = ResponseCode.BAD_OPTION;
 	public static final ResponseCode STATUS_TIMEOUT = ResponseCode.GATEWAY_TIMEOUT;
 	public static final ResponseCode STATUS_TRANSLATION_ERROR = ResponseCode.BAD_GATEWAY;
+	public static final ResponseCode STATUS_SERVICE_UNAVAILABLE = ResponseCode.SERVICE_UNAVAILABLE;
 
 	/**
 	 * Starting from an external CoAP request, the method fills a new request
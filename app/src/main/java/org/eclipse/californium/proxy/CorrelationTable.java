@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import java.util.List;
+
+
+/**
+ * Table of the pending exchanges indexed by a primitive correlation id. The
+ * table is split in segments, each one an open-addressing hash table with
+ * linear probing and backward-shift deletion, so lookups and removals do not
+ * allocate. Every entry carries a deadline: the entries forgotten by their
+ * owners are removed by {@link #purgeExpired(long, List)}.
+ *
+ * @param <V>
+ *            the type of the values
+ */
+public class CorrelationTable<V> {
+
+	/** The id never assigned to an exchange, it marks the free slots. */
+	public static final long NO_ID = 0;
+
+	private static final int SEGMENTS = 16;
+	private static final int INITIAL_SEGMENT_CAPACITY = 64;
+
+	private final Segment<V>[] segments;
+
+	/**
+	 * Instantiates a new empty table.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public CorrelationTable() {
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment<V>(INITIAL_SEGMENT_CAPACITY);
+		}
+	}
+
+	/**
+	 * Associates a value to an id until the deadline.
+	 *
+	 * @param id
+	 *            the correlation id, different from {@link #NO_ID}
+	 * @param value
+	 *            the value
+	 * @param deadline
+	 *            the {@link System#nanoTime()} after which the entry expires
+	 */
+	public void put(long id, V value, long deadline) {
+		if (id == NO_ID) {
+			throw new IllegalArgumentException("id == NO_ID");
+		}
+		if (value == null) {
+			throw new IllegalArgumentException("value == null");
+		}
+		long hash = mix(id);
+		segmentFor(hash).put(id, hash, value, deadline);
+	}
+
+	/**
+	 * @return the value associated to the id, or null
+	 */
+	public V get(long id) {
+		if (id == NO_ID) {
+			return null;
+		}
+		long hash = mix(id);
+		return segmentFor(hash).get(id, hash);
+	}
+
+	/**
+	 * @return true, if a value is associated to the id
+	 */
+	public boolean containsKey(long id) {
+		return get(id) != null;
+	}
+
+	/**
+	 * Removes the value associated to the id.
+	 *
+	 * @return the removed value, or null
+	 */
+	public V remove(long id) {
+		if (id == NO_ID) {
+			return null;
+		}
+		long hash = mix(id);
+		return segmentFor(hash).remove(id, hash, null);
+	}
+
+	/**
+	 * Removes the entry only if the id is associated to the given value.
+	 *
+	 * @return true, if the entry has been removed
+	 */
+	public boolean remove(long id, V value) {
+		if (id == NO_ID || value == null) {
+			return false;
+		}
+		long hash = mix(id);
+		return segmentFor(hash).remove(id, hash, value) != null;
+	}
+
+	/**
+	 * Removes the entries whose deadline has passed.
+	 *
+	 * @param now
+	 *            the current {@link System#nanoTime()}
+	 * @param expired
+	 *            the list receiving the removed values
+	 */
+	public void purgeExpired(long now, List<V> expired) {
+		for (Segment<V> segment : segments) {
+			segment.purgeExpired(now, expired);
+		}
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment<V> segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	private Segment<V> segmentFor(long hash) {
+		return segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * Spreads the bits of sequential ids (finalizer of MurmurHash3).
+	 */
+	private static long mix(long id) {
+		long h = id;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static final class Segment<V> {
+		private long[] ids;
+		private long[] deadlines;
+		private Object[] values;
+		private int mask;
+		private int size;
+
+		Segment(int capacity) {
+			allocate(capacity);
+		}
+
+		private void allocate(int capacity) {
+			ids = new long[capacity];
+			deadlines = new long[capacity];
+			values = new Object[capacity];
+			mask = capacity - 1;
+		}
+
+		synchronized void put(long id, long hash, V value, long deadline) {
+			if ((size + 1) * 2 > ids.length) {
+				resize(ids.length * 2);
+			}
+			int index = (int) hash & mask;
+			while (ids[index] != NO_ID && ids[index] != id) {
+				index = (index + 1) & mask;
+			}
+			if (ids[index] == NO_ID) {
+				size++;
+			}
+			ids[index] = id;
+			deadlines[index] = deadline;
+			values[index] = value;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V get(long id, long hash) {
+			int index = (int) hash & mask;
+			long current;
+			while ((current = ids[index]) != NO_ID) {
+				if (current == id) {
+					return (V) values[index];
+				}
+				index = (index + 1) & mask;
+			}
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V remove(long id, long hash, V expected) {
+			int index = (int) hash & mask;
+			long current;
+			while ((current = ids[index]) != NO_ID) {
+				if (current == id) {
+					V value = (V) values[index];
+					if (expected != null && expected != value) {
+						return null;
+					}
+					delete(index);
+					return value;
+				}
+				index = (index + 1) & mask;
+			}
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized void purgeExpired(long now, List<V> expired) {
+			int index = 0;
+			while (index < ids.length) {
+				if (ids[index] != NO_ID && deadlines[index] - now <= 0) {
+					expired.add((V) values[index]);
+					// the shift may move another entry in this slot
+					delete(index);
+				} else {
+					index++;
+				}
+			}
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		/**
+		 * Removes the entry at the index and shifts back the following
+		 * entries of the probe sequence, so that no tombstone is needed.
+		 */
+		private void delete(int index) {
+			int free = index;
+			int next = (free + 1) & mask;
+			while (ids[next] != NO_ID) {
+				int home = (int) mix(ids[next]) & mask;
+				// move the entry if its home is not between the free slot
+				// (excluded) and its current position (included)
+				if (((next - home) & mask) >= ((next - free) & mask)) {
+					ids[free] = ids[next];
+					deadlines[free] = deadlines[next];
+					values[free] = values[next];
+					free = next;
+				}
+				next = (next + 1) & mask;
+			}
+			ids[free] = NO_ID;
+			deadlines[free] = 0;
+			values[free] = null;
+			size--;
+		}
+
+		private void resize(int capacity) {
+			long[] oldIds = ids;
+			long[] oldDeadlines = deadlines;
+			Object[] oldValues = values;
+			allocate(capacity);
+			for (int i = 0; i < oldIds.length; i++) {
+				if (oldIds[i] != NO_ID) {
+					int index = (int) mix(oldIds[i]) & mask;
+					while (ids[index] != NO_ID) {
+						index = (index + 1) & mask;
+					}
+					ids[index] = oldIds[i];
+					deadlines[index] = oldDeadlines[i];
+					values[index] = oldValues[i];
+				}
+			}
+		}
+	}
+}
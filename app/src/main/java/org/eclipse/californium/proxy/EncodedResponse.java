@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import java.util.Locale;
+import java.util.Map;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+
+/**
+ * Response whose payload is compressed with an http content-coding, so that
+ * the cache can serve its compressed representations as they are. Such a
+ * response is only created for a request whose http client accepts the
+ * content-coding, see {@link #getContentCoding(Request)}, and it must never
+ * be sent to a coap client nor cached.
+ */
+public class EncodedResponse extends Response {
+
+	/** The content-coding of the gzip format. */
+	public static final String GZIP = "gzip";
+
+	/** The content-coding of the zlib format. */
+	public static final String DEFLATE = "deflate";
+
+	/**
+	 * The key in the user context of a request of the content-coding accepted
+	 * by its http client.
+	 */
+	private static final String CONTENT_CODING_KEY = "http.content-coding";
+
+	private final String contentCoding;
+
+	/**
+	 * Instantiates a new encoded response.
+	 *
+	 * @param code
+	 *            the response code
+	 * @param contentCoding
+	 *            {@link #GZIP} or {@link #DEFLATE}
+	 */
+	public EncodedResponse(ResponseCode code, String contentCoding) {
+		super(code);
+		this.contentCoding = contentCoding;
+	}
+
+	/**
+	 * @return the content-coding of the payload
+	 */
+	public String getContentCoding() {
+		return contentCoding;
+	}
+
+	/**
+	 * Gets the content-coding the http client of a request accepts for the
+	 * compressed responses.
+	 *
+	 * @param request
+	 *            the coap request
+	 * @return {@link #GZIP}, {@link #DEFLATE}, or null if the client accepts
+	 *         neither or is not an http client
+	 */
+	public static String getContentCoding(Request request) {
+		Map<String, String> context = request.getUserContext();
+		return context == null ? null : context.get(CONTENT_CODING_KEY);
+	}
+
+	/**
+	 * Chooses the content-coding of the compressed responses from the
+	 * accept-encoding header of an http request, preferring gzip.
+	 *
+	 * @param acceptEncoding
+	 *            the value of the header
+	 * @param context
+	 *            the user context of the translated request, which records
+	 *            the content-coding chosen
+	 */
+	static void setContentCoding(String acceptEncoding, Map<String, String> context) {
+		boolean gzip = false;
+		boolean deflate = false;
+		for (String coding : acceptEncoding.toLowerCase(Locale.ENGLISH).split(",")) {
+			String[] parameters = coding.split(";");
+			String name = parameters[0].trim();
+			boolean accepted = true;
+			for (int i = 1; i < parameters.length; i++) {
+				String parameter = parameters[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						accepted = Double.parseDouble(parameter.substring(2).trim()) > 0;
+					} catch (NumberFormatException e) {
+						accepted = false;
+					}
+				}
+			}
+			if (name.equals(GZIP) || name.equals("x-gzip")) {
+				gzip = accepted;
+			} else if (name.equals(DEFLATE)) {
+				deflate = accepted;
+			}
+		}
+		if (gzip) {
+			context.put(CONTENT_CODING_KEY, GZIP);
+		} else if (deflate) {
+			context.put(CONTENT_CODING_KEY, DEFLATE);
+		}
+	}
+}
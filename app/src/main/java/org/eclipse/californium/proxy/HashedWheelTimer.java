@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Timer based on a hashed timing wheel. Scheduling and cancelling a timeout
+ * are constant time operations and a single thread expires all the timeouts,
+ * whatever their number. The expiration is approximated to the duration of a
+ * tick, which is fine for the gateway timeouts of the proxy.
+ */
+public class HashedWheelTimer {
+
+	private static final Logger LOGGER = Logger.getLogger(HashedWheelTimer.class.getCanonicalName());
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+
+	/** Timeouts scheduled but not placed in the wheel yet. */
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+	/** Timeouts cancelled but not removed from the wheel yet. */
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	private final Thread worker;
+	private final long startTime;
+	private volatile boolean running = true;
+	private long tick;
+
+	/**
+	 * Instantiates a new timer and starts its thread.
+	 *
+	 * @param name
+	 *            the name of the timer thread
+	 * @param tickDuration
+	 *            the duration of a tick in milliseconds
+	 * @param ticksPerWheel
+	 *            the number of buckets, rounded up to a power of two
+	 */
+	public HashedWheelTimer(String name, long tickDuration, int ticksPerWheel) {
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("tickDuration <= 0");
+		}
+		if (ticksPerWheel <= 0) {
+			throw new IllegalArgumentException("ticksPerWheel <= 0");
+		}
+		int size = 1;
+		while (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+
+		worker = new Thread(name) {
+			@Override
+			public void run() {
+				runWheel();
+			}
+		};
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Schedules a task to be run after the given delay. The task runs on the
+	 * timer thread, so it must be short.
+	 *
+	 * @param task
+	 *            the task
+	 * @param delay
+	 *            the delay
+	 * @param unit
+	 *            the unit of the delay
+	 * @return the handle to cancel the timeout
+	 */
+	public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+		if (task == null) {
+			throw new IllegalArgumentException("task == null");
+		}
+		long deadline = System.nanoTime() + unit.toNanos(delay) - startTime;
+		Timeout timeout = new Timeout(this, task, deadline);
+		if (running) {
+			pending.add(timeout);
+		}
+		return timeout;
+	}
+
+	/**
+	 * Stops the timer. The timeouts not expired yet are discarded.
+	 */
+	public void stop() {
+		running = false;
+		worker.interrupt();
+	}
+
+	private void runWheel() {
+		while (running) {
+			if (waitForNextTick() < 0) {
+				continue;
+			}
+			removeCancelled();
+			transferPending();
+			wheel[(int) (tick & mask)].expire();
+			tick++;
+		}
+	}
+
+	private long waitForNextTick() {
+		long deadline = tickNanos * (tick + 1);
+		while (true) {
+			long current = System.nanoTime() - startTime;
+			long sleepMillis = TimeUnit.NANOSECONDS.toMillis(deadline - current + 999999);
+			if (sleepMillis <= 0) {
+				return current;
+			}
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException e) {
+				if (!running) {
+					return -1;
+				}
+			}
+		}
+	}
+
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.state != Timeout.ST_INIT) {
+				continue;
+			}
+			long calculated = timeout.deadline / tickNanos;
+			timeout.remainingRounds = (calculated - tick) / wheel.length;
+			// never schedule in the past
+			long ticks = Math.max(calculated, tick);
+			wheel[(int) (ticks & mask)].add(timeout);
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	/**
+	 * Handle of a scheduled task.
+	 */
+	public static final class Timeout {
+		private static final int ST_INIT = 0;
+		private static final int ST_CANCELLED = 1;
+		private static final int ST_EXPIRED = 2;
+
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+		private final long deadline;
+		private volatile int state = ST_INIT;
+
+		// accessed only by the timer thread
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the timeout. The task will not run if it has not run yet.
+		 *
+		 * @return true, if the timeout has been cancelled by this call
+		 */
+		public boolean cancel() {
+			synchronized (this) {
+				if (state != ST_INIT) {
+					return false;
+				}
+				state = ST_CANCELLED;
+			}
+			timer.cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state == ST_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == ST_EXPIRED;
+		}
+
+		private void expire() {
+			synchronized (this) {
+				if (state != ST_INIT) {
+					return;
+				}
+				state = ST_EXPIRED;
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Exception while running a timeout", e);
+			}
+		}
+	}
+
+	/**
+	 * Doubly linked list of the timeouts of a slot of the wheel.
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void expire() {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remainingRounds <= 0) {
+					remove(timeout);
+					timeout.expire();
+				} else if (timeout.isCancelled()) {
+					remove(timeout);
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.bucket != this) {
+				return;
+			}
+			Timeout next = timeout.next;
+			if (timeout.prev != null) {
+				timeout.prev.next = next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			if (timeout == head) {
+				head = next;
+			}
+			if (timeout == tail) {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+	}
+}
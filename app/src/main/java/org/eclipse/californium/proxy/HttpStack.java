@@ -1,19 +1,32 @@
 package org.eclipse.californium.proxy;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Exchanger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 
+import cz.msebera.android.httpclient.ContentTooLongException;
 import cz.msebera.android.httpclient.HttpException;
 import cz.msebera.android.httpclient.HttpRequest;
 import cz.msebera.android.httpclient.HttpRequestInterceptor;
@@ -22,8 +35,8 @@ import cz.msebera.android.httpclient.HttpResponseInterceptor;
 import cz.msebera.android.httpclient.HttpStatus;
 import cz.msebera.android.httpclient.HttpVersion;
 import cz.msebera.android.httpclient.StatusLine;
-import cz.msebera.android.httpclient.client.protocol.RequestAcceptEncoding;
 import cz.msebera.android.httpclient.client.protocol.ResponseContentEncoding;
+import cz.msebera.android.httpclient.concurrent.Cancellable;
 import cz.msebera.android.httpclient.entity.StringEntity;
 import cz.msebera.android.httpclient.impl.DefaultConnectionReuseStrategy;
 import cz.msebera.android.httpclient.impl.EnglishReasonPhraseCatalog;
@@ -31,22 +44,29 @@ import cz.msebera.android.httpclient.impl.nio.DefaultHttpServerIODispatch;
 import cz.msebera.android.httpclient.impl.nio.DefaultNHttpServerConnection;
 import cz.msebera.android.httpclient.impl.nio.DefaultNHttpServerConnectionFactory;
 import cz.msebera.android.httpclient.impl.nio.reactor.DefaultListeningIOReactor;
+import cz.msebera.android.httpclient.impl.nio.reactor.IOReactorConfig;
+import cz.msebera.android.httpclient.message.BasicHttpResponse;
 import cz.msebera.android.httpclient.message.BasicStatusLine;
 import cz.msebera.android.httpclient.nio.NHttpConnectionFactory;
 import cz.msebera.android.httpclient.nio.protocol.BasicAsyncRequestConsumer;
 import cz.msebera.android.httpclient.nio.protocol.BasicAsyncRequestHandler;
+import cz.msebera.android.httpclient.nio.protocol.BasicAsyncResponseProducer;
 import cz.msebera.android.httpclient.nio.protocol.HttpAsyncExchange;
 import cz.msebera.android.httpclient.nio.protocol.HttpAsyncRequestConsumer;
 import cz.msebera.android.httpclient.nio.protocol.HttpAsyncRequestHandler;
 import cz.msebera.android.httpclient.nio.protocol.HttpAsyncRequestHandlerRegistry;
+import cz.msebera.android.httpclient.nio.protocol.HttpAsyncResponseProducer;
 import cz.msebera.android.httpclient.nio.protocol.HttpAsyncService;
+import cz.msebera.android.httpclient.nio.IOControl;
 import cz.msebera.android.httpclient.nio.reactor.IOEventDispatch;
 import cz.msebera.android.httpclient.nio.reactor.ListeningIOReactor;
 import cz.msebera.android.httpclient.params.CoreConnectionPNames;
 import cz.msebera.android.httpclient.params.CoreProtocolPNames;
 import cz.msebera.android.httpclient.params.HttpParams;
 import cz.msebera.android.httpclient.params.SyncBasicHttpParams;
+import cz.msebera.android.httpclient.protocol.HTTP;
 import cz.msebera.android.httpclient.protocol.HttpContext;
+import cz.msebera.android.httpclient.protocol.HttpCoreContext;
 import cz.msebera.android.httpclient.protocol.HttpProcessor;
 import cz.msebera.android.httpclient.protocol.HttpRequestHandler;
 import cz.msebera.android.httpclient.protocol.ImmutableHttpProcessor;
@@ -58,15 +78,14 @@ import cz.msebera.android.httpclient.protocol.ResponseServer;
 
 /**
  * Class encapsulating the logic of a http server. The class create a receiver
- * thread that it is always blocked on the listen primitive. For each connection
- * this thread creates a new thread that handles the client/server dialog.
+ * thread that it is always blocked on the listen primitive. The translated
+ * requests are handed to a shared executor and each http exchange is completed
+ * asynchronously when the corresponding coap response is produced.
  */
 public class HttpStack {
 	
 	private static final Logger LOGGER = Logger.getLogger(HttpStack.class.getCanonicalName());
 	
-	private static final Response Response_NULL = new Response(null); // instead of Response.NULL // TODO
-	
 	private static final int SOCKET_TIMEOUT = NetworkConfig.getStandard().getInt(
 			NetworkConfig.Keys.HTTP_SERVER_SOCKET_TIMEOUT);
 	private static final int SOCKET_BUFFER_SIZE = NetworkConfig.getStandard().getInt(
@@ -90,7 +109,82 @@ public class HttpStack {
 	 */
 	public static final String LOCAL_RESOURCE_NAME = "local";
 
-	private final ConcurrentHashMap<Request, Exchanger<Response>> exchangeMap = new ConcurrentHashMap<Request, Exchanger<Response>>();
+	/**
+	 * The resource relaying the coap notifications as server-sent events. A
+	 * client requesting http://proxy-address/OBSERVE_RESOURCE_NAME/coap-server
+	 * or http://proxy-address/OBSERVE_RESOURCE_NAME/LOCAL_RESOURCE_NAME/resource
+	 * receives a notification event at each change of the resource.
+	 */
+	private static final String OBSERVE_RESOURCE_NAME = "observe";
+
+	private static final int WORKER_THREAD_COUNT = NetworkConfig.getStandard().getInt(
+			NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT);
+	private static final int MAX_IN_FLIGHT = ProxyNetworkConfig.getStandard().getInt(
+			"HTTP_SERVER_MAX_IN_FLIGHT");
+	private static final int QUEUE_CAPACITY = ProxyNetworkConfig.getStandard().getInt(
+			"HTTP_SERVER_QUEUE_CAPACITY");
+	private static final int QUEUE_TIMEOUT = ProxyNetworkConfig.getStandard().getInt(
+			"HTTP_SERVER_QUEUE_TIMEOUT");
+	private static final int RETRY_AFTER = ProxyNetworkConfig.getStandard().getInt(
+			"HTTP_SERVER_RETRY_AFTER");
+	private static final int REACTOR_COUNT = ProxyNetworkConfig.getStandard().getInt(
+			"HTTP_SERVER_REACTOR_COUNT");
+	private static final int IO_THREAD_COUNT = ProxyNetworkConfig.getStandard().getInt(
+			"HTTP_SERVER_IO_THREAD_COUNT"); // 0: share the cores among the reactors
+	private static final int SELECT_INTERVAL = ProxyNetworkConfig.getStandard().getInt(
+			"HTTP_SERVER_SELECT_INTERVAL"); // [milliseconds]
+	private static final int SND_BUF_SIZE = ProxyNetworkConfig.getStandard().getInt(
+			"HTTP_SERVER_SND_BUF_SIZE");
+	private static final int RCV_BUF_SIZE = ProxyNetworkConfig.getStandard().getInt(
+			"HTTP_SERVER_RCV_BUF_SIZE");
+	private static final String LISTEN_ADDRESSES = ProxyNetworkConfig.getStandard().getString(
+			"HTTP_SERVER_LISTEN_ADDRESSES"); // host:port,host:port
+	private static final int MAX_SUBSCRIBERS = ProxyNetworkConfig.getStandard().getInt(
+			"HTTP_SERVER_MAX_SUBSCRIBERS");
+	private static final int COAP_PORT = NetworkConfig.getStandard().getInt(
+			NetworkConfig.Keys.COAP_PORT);
+	private static final int TIMER_TICK = 100; // [milliseconds]
+	private static final int TIMER_WHEEL_SIZE = 512;
+	private static final int EXCHANGE_LIFETIME = GATEWAY_TIMEOUT * 2; // [milliseconds]
+	private static final int PURGE_INTERVAL = 1000; // [milliseconds]
+
+	/**
+	 * Pending exchanges indexed by the correlation id assigned to the coap
+	 * request at translation time. The entries outliving
+	 * {@link #EXCHANGE_LIFETIME} are purged periodically.
+	 */
+	private final CorrelationTable<ProxyResponseCallback> exchangeTable = new CorrelationTable<ProxyResponseCallback>();
+	private final AtomicLong correlationIds = new AtomicLong(CorrelationTable.NO_ID);
+
+	/**
+	 * Shared executor that hands the translated requests to the proxy. The
+	 * threads never wait for the coap responses, they only run the forwarding
+	 * logic.
+	 */
+	private final ExecutorService requestExecutor = Executors.newFixedThreadPool(WORKER_THREAD_COUNT);
+
+	/**
+	 * Timer enforcing the gateway timeout of the pending exchanges.
+	 */
+	private final HashedWheelTimer timeoutTimer = new HashedWheelTimer("HttpStack timer", TIMER_TICK, TIMER_WHEEL_SIZE);
+
+	/**
+	 * Number of gateway timeouts fired, per upstream host.
+	 */
+	private final ConcurrentHashMap<String, AtomicLong> timeoutCounts = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Bounds the requests handled at the same time, the overflow waits in a
+	 * bounded queue or is refused with 503.
+	 */
+	private final AdmissionController admissionController = new AdmissionController(
+			"HttpStack", requestExecutor, timeoutTimer, MAX_IN_FLIGHT, QUEUE_CAPACITY, QUEUE_TIMEOUT);
+
+	/**
+	 * Shares the coap observations among the event stream subscribers. The
+	 * heartbeat keeps the idle streams below the socket timeout.
+	 */
+	private final ObserveRelay observeRelay = new ObserveRelay(timeoutTimer, SOCKET_TIMEOUT / 2, MAX_SUBSCRIBERS);
 
 	private RequestHandler requestHandler;
 	
@@ -105,40 +199,83 @@ public class HttpStack {
 	 */
 	public HttpStack(int httpPort) throws IOException {
 		new HttpServer(httpPort);
+		schedulePurge();
 	}
 
 	/**
-	 * Checks if a thread is waiting for the arrive of a specific response.
+	 * Checks if an http exchange is waiting for the response of a request.
 	 * 
 	 * @param request
 	 *            the request
 	 * @return true, if is waiting
 	 */
 	public boolean isWaitingRequest(Request request) {
+		return exchangeTable.containsKey(getCorrelationId(request));
+	}
 
-		// DEBUG
-		// System.out.println(request.hashCode());
-		// request.prettyPrint();
-		//
-		// System.out.println(responseMap.get(request) != null);
-		// System.out.println(semaphoreMap.get(request) != null);
-		//
-		// for (Request r : responseMap.keySet()) {
-		// System.out.println(r.hashCode());
-		// r.prettyPrint();
-		// }
-		//
-		// for (Request r : semaphoreMap.keySet()) {
-		// System.out.println(r.hashCode());
-		// r.prettyPrint();
-		// }
-
-		// check the presence of the key in both maps
-		// TODO check how much is this operation heavy
-		// return responseMap.containsKey(request) &&
-		// semaphoreMap.containsKey(request);
-
-		return exchangeMap.containsKey(request);
+	/**
+	 * Assigns a new correlation id to a translated request. The id is carried
+	 * in the token, which is a local option never forwarded by the proxy.
+	 * 
+	 * @param request
+	 *            the coap request
+	 * @return the correlation id
+	 */
+	private long assignCorrelationId(Request request) {
+		long id = correlationIds.incrementAndGet();
+		if (id == CorrelationTable.NO_ID) {
+			id = correlationIds.incrementAndGet();
+		}
+		byte[] token = new byte[8];
+		long value = id;
+		for (int i = 7; i >= 0; i--) {
+			token[i] = (byte) value;
+			value >>>= 8;
+		}
+		request.setToken(token);
+		return id;
+	}
+
+	/**
+	 * Gets the correlation id carried by a request.
+	 * 
+	 * @param request
+	 *            the coap request
+	 * @return the correlation id, or {@link CorrelationTable#NO_ID} if the
+	 *         request has not been translated by this stack
+	 */
+	private static long getCorrelationId(Request request) {
+		byte[] token = request.getToken();
+		if (token == null || token.length != 8) {
+			return CorrelationTable.NO_ID;
+		}
+		return decode(token);
+	}
+
+	private static long decode(byte[] token) {
+		long id = 0;
+		for (int i = 0; i < 8; i++) {
+			id = (id << 8) | (token[i] & 0xFF);
+		}
+		return id;
+	}
+
+	/**
+	 * Schedules the periodic removal of the exchanges that outlived their
+	 * lifetime, e.g., because a path forgot to complete them.
+	 */
+	private void schedulePurge() {
+		timeoutTimer.newTimeout(new Runnable() {
+			public void run() {
+				List<ProxyResponseCallback> expired = new LinkedList<ProxyResponseCallback>();
+				exchangeTable.purgeExpired(System.nanoTime(), expired);
+				for (ProxyResponseCallback callback : expired) {
+					LOGGER.warning("Purged stale exchange " + callback.correlationId);
+					callback.cancel();
+				}
+				schedulePurge();
+			}
+		}, PURGE_INTERVAL, TimeUnit.MILLISECONDS);
 	}
 
 	/**
@@ -161,128 +298,242 @@ public class HttpStack {
 		httpExchange.submitResponse();
 	}
 
+	/**
+	 * Creates an empty response that closes the connection, for the requests
+	 * failed while reading their body.
+	 * 
+	 * @param httpCode
+	 *            the http code
+	 * @return the response
+	 */
+	private static HttpResponse createClosingResponse(int httpCode) {
+		HttpResponse httpResponse = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, httpCode, EnglishReasonPhraseCatalog.INSTANCE.getReason(httpCode, Locale.ENGLISH)));
+		httpResponse.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+		return httpResponse;
+	}
+
+	/**
+	 * Send the response signalling that the proxy is overloaded.
+	 * 
+	 * @param httpExchange
+	 *            the http exchange
+	 */
+	private void sendOverloadResponse(HttpAsyncExchange httpExchange) {
+		httpExchange.getResponse().setHeader("Retry-After", Integer.toString(RETRY_AFTER));
+		sendSimpleHttpResponse(httpExchange, HttpTranslator.STATUS_SERVICE_UNAVAILABLE);
+	}
+
+	/**
+	 * Counts a gateway timeout for the upstream host of the request.
+	 * 
+	 * @param request
+	 *            the coap request that timed out
+	 */
+	private void countTimeout(Request request) {
+		String upstream = LOCAL_RESOURCE_NAME;
+		if (request.getOptions().hasProxyUri()) {
+			try {
+				String host = new URI(request.getOptions().getProxyUri()).getHost();
+				if (host != null) {
+					upstream = host;
+				}
+			} catch (URISyntaxException e) {
+				LOGGER.finer("Proxy-uri malformed: " + e.getMessage());
+			}
+		}
+		AtomicLong count = timeoutCounts.get(upstream);
+		if (count == null) {
+			AtomicLong newCount = new AtomicLong();
+			count = timeoutCounts.putIfAbsent(upstream, newCount);
+			if (count == null) {
+				count = newCount;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Gets the number of gateway timeouts fired for each upstream host. The
+	 * requests to the local resources are counted under
+	 * {@link #LOCAL_RESOURCE_NAME}.
+	 * 
+	 * @return the timeout counts
+	 */
+	public Map<String, Long> getTimeoutCounts() {
+		Map<String, Long> counts = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : timeoutCounts.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return Collections.unmodifiableMap(counts);
+	}
+
+	/**
+	 * @return the admission controller bounding the work of the http stack
+	 */
+	public AdmissionController getAdmissionController() {
+		return admissionController;
+	}
+
+	/**
+	 * @return the relay of the coap notifications to the event streams
+	 */
+	public ObserveRelay getObserveRelay() {
+		return observeRelay;
+	}
+
 	protected void doSendResponse(Request request, Response response) throws IOException {
 		// the http stack is intended to send back only coap responses
 
 		// retrieve the request linked to the response
 //		if (Bench_Help.DO_LOG) 
+		if (LOGGER.isLoggable(Level.FINE)) {
 			LOGGER.fine("Handling response for request: " + request);
+		}
 
-		// fill the exchanger with the incoming response
-		Exchanger<Response> exchanger = exchangeMap.get(request);
-		if (exchanger != null) {
-			try {
-				exchanger.exchange(response);
-//				if (Bench_Help.DO_LOG) 
-					LOGGER.info("Exchanged correctly");
-			} catch (InterruptedException e) {
-				LOGGER.log(Level.WARNING, "Exchange interrupted", e);
-
-				// remove the entry from the map
-				exchangeMap.remove(request);
-				return;
-			}
+		// complete the pending http exchange with the incoming response
+		long correlationId = getCorrelationId(request);
+		ProxyResponseCallback callback = exchangeTable.get(correlationId);
+		if (callback != null) {
+			callback.completed(response);
+//			if (Bench_Help.DO_LOG) 
+				LOGGER.finer("Exchange completed");
 		} else {
-			LOGGER.warning("exchanger was null for request "+request+" with hash "+request.hashCode());
+			LOGGER.warning("No pending exchange for request " + request + " with correlation id " + correlationId);
 		}
 	}
-        /**
-	 * The Class CoapResponseWorker. This thread request a response from the
-         * lower layers. It is the producer of the producer/consumer pattern.
-	 */
-        private final class CoapRequestWorker extends Thread {
-		private final Request coapRequest;
-
-		/**
-		 * Instantiates a new coap response worker.
-		 *
-		 * @param name
-		 *            the name
-		 * @param coapRequest
-		 *            the coap request
-		 */
-		public CoapRequestWorker(String name, Request coapRequest) {
-			super(name);
-			this.coapRequest = coapRequest;
-                }
-
-		@Override
-		public void run() {
-                    doReceiveMessage(coapRequest);
-                }
-        }
 
 	/**
-	 * The Class CoapResponseWorker. This thread waits a response from the lower
-	 * layers. It is the consumer of the producer/consumer pattern.
+	 * The Class ProxyResponseCallback. It links a pending http exchange to the
+	 * coap request produced by its translation. The callback is completed
+	 * exactly once, either by the coap response delivered through
+	 * {@link HttpStack#doSendResponse(Request, Response)}, by the gateway
+	 * timeout or by the cancellation of the http connection. The http response
+	 * is submitted directly by the completing thread, so no thread is parked
+	 * waiting for the coap response. The callback is also the admission ticket
+	 * of the request: the slot is held until the exchange is completed.
 	 */
-	private final class CoapResponseWorker extends Thread {
+	private final class ProxyResponseCallback extends AdmissionController.Ticket implements Cancellable {
 		private final HttpAsyncExchange httpExchange;
 		private final HttpRequest httpRequest;
 		private final Request coapRequest;
-                private final Thread responseWorker;
+		private final long correlationId;
+		private final long start = System.nanoTime();
+		private final AtomicBoolean done = new AtomicBoolean();
+		private volatile HashedWheelTimer.Timeout timeoutHandle;
+		// guarded by this
+		private IOControl suspendedInput;
+		private boolean dequeued;
 
 		/**
-		 * Instantiates a new coap response worker.
+		 * Instantiates a new proxy response callback.
 		 * 
-		 * @param name
-		 *            the name
 		 * @param coapRequest
 		 *            the coap request
+		 * @param correlationId
+		 *            the correlation id of the coap request
 		 * @param httpExchange
 		 *            the http exchange
 		 * @param httpRequest
 		 *            the http request
-                 * @param responseWorker
-		 *            the coap response worker
 		 */
-		public CoapResponseWorker(String name, Request coapRequest, HttpAsyncExchange httpExchange, HttpRequest httpRequest, Thread responseWorker) {
-			super(name);
+		public ProxyResponseCallback(Request coapRequest, long correlationId, HttpAsyncExchange httpExchange, HttpRequest httpRequest) {
 			this.coapRequest = coapRequest;
+			this.correlationId = correlationId;
 			this.httpExchange = httpExchange;
 			this.httpRequest = httpRequest;
-                        this.responseWorker = responseWorker;
+		}
+
+		/**
+		 * Stops reading from the connection while the request waits for a
+		 * slot, so that the client feels the back pressure.
+		 * 
+		 * @param ioControl
+		 *            the connection of the exchange
+		 */
+		public void suspendInput(IOControl ioControl) {
+			// the ticket may have been started or shed meanwhile by another
+			// thread, which would not resume the input
+			synchronized (this) {
+				if (ioControl == null || dequeued || done.get()) {
+					return;
+				}
+				suspendedInput = ioControl;
+				ioControl.suspendInput();
+			}
+		}
+
+		/**
+		 * Reads from the connection again, once the request leaves the queue.
+		 */
+		private void resumeInput() {
+			IOControl ioControl;
+			synchronized (this) {
+				dequeued = true;
+				ioControl = suspendedInput;
+				suspendedInput = null;
+			}
+			if (ioControl != null) {
+				ioControl.requestInput();
+			}
 		}
 
 		/*
 		 * (non-Javadoc)
-		 * @see java.lang.Thread#run()
+		 * @see org.eclipse.californium.proxy.AdmissionController.Ticket#execute()
 		 */
 		@Override
-		public void run() {
-			// get the exchanger
-			Exchanger<Response> exchanger = exchangeMap.get(coapRequest);
-
-			// if the map does not contain the key, send an error response
-			if (exchanger == null) {
-				LOGGER.warning("exchanger == null");
-				sendSimpleHttpResponse(httpExchange, HttpStatus.SC_INTERNAL_SERVER_ERROR);
-				return;
+		protected void execute() {
+			resumeInput();
+			doReceiveMessage(coapRequest);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see org.eclipse.californium.proxy.AdmissionController.Ticket#shed()
+		 */
+		@Override
+		protected void shed() {
+			resumeInput();
+			if (markDone()) {
+				sendOverloadResponse(httpExchange);
 			}
+		}
 
-			// get the response
-			Response coapResponse = null;
-			try {
-				coapResponse = exchanger.exchange(Response_NULL, GATEWAY_TIMEOUT, TimeUnit.MILLISECONDS);
-			} catch (TimeoutException e) {
-				LOGGER.warning("Timeout occurred");
-				// send the timeout error message
-				sendSimpleHttpResponse(httpExchange, HttpTranslator.STATUS_TIMEOUT);
-				return;
-			} catch (InterruptedException e) {
-				// if the thread is interrupted, terminate
-				if (isInterrupted()) {
-					LOGGER.warning("Thread interrupted");
-					sendSimpleHttpResponse(httpExchange, HttpStatus.SC_INTERNAL_SERVER_ERROR);
-					return;
+		/**
+		 * Refuses the exchange because the http stack is overloaded.
+		 */
+		public void reject() {
+			if (markDone()) {
+				sendOverloadResponse(httpExchange);
+			}
+		}
+
+		/**
+		 * Schedules the gateway timeout for this exchange.
+		 */
+		public void scheduleTimeout() {
+			timeoutHandle = timeoutTimer.newTimeout(new Runnable() {
+				public void run() {
+					if (markDone()) {
+						LOGGER.warning("Timeout occurred");
+						countTimeout(coapRequest);
+						// send the timeout error message
+						sendSimpleHttpResponse(httpExchange, HttpTranslator.STATUS_TIMEOUT);
+					}
 				}
-			} finally {
-				// remove the entry from the map
-				exchangeMap.remove(coapRequest);
-                                // the producer thread was unable to deliver a response at time, so we kill it.
-                                responseWorker.interrupt();
-//				if (Bench_Help.DO_LOG) 
-					LOGGER.finer("Entry removed from map");
+			}, GATEWAY_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Translates the coap response and submits it to the http exchange.
+		 * 
+		 * @param coapResponse
+		 *            the coap response
+		 */
+		public void completed(Response coapResponse) {
+			if (!markDone()) {
+				LOGGER.finer("Exchange already completed");
+				return;
 			}
 
 			if (coapResponse == null) {
@@ -291,12 +542,19 @@ public class HttpStack {
 				return;
 			}
 
+			if (AccessLog.getStandard().sample(coapRequest)) {
+				AccessLog.getStandard().log(AccessLog.Event.RESPONSE, coapRequest.getOptions().getProxyUri(),
+						coapResponse.getCode(), System.nanoTime() - start);
+			}
+
 			// get the sample http response
 			HttpResponse httpResponse = httpExchange.getResponse();
 
 			try {
 				// translate the coap response in an http response
+				long translationStart = System.nanoTime();
 				HttpTranslator.getHttpResponse(httpRequest, coapResponse, httpResponse);
+				LatencyStats.getStandard().record(LatencyStats.Stage.RESPONSE_TRANSLATION, translationStart);
 
 //				if (Bench_Help.DO_LOG) 
 					LOGGER.finer("Outgoing http response: " + httpResponse.getStatusLine());
@@ -308,9 +566,60 @@ public class HttpStack {
 			 httpResponse.setHeader("Access-Control-Allow-Methods", "GET,POST,HEAD,PUT,DELETE,OPTIONS");
 		      httpResponse.setHeader("Access-Control-Allow-Origin", "*");
 		      httpResponse.setHeader("Access-Control-Allow-Headers", "Access-Control-Allow-Origin, UTOKEN, DTOKEN,Accept, Origin, X-Requested-With, Content-Type, Last-Modified,Keep-Alive,User-Agent,If-Modified-Since,Cache-Control");
+
+			if (coapResponse instanceof StreamedResponse) {
+				// send the headers and the first block now, the following
+				// blocks are relayed as they arrive
+				Block2Stream blockStream = ((StreamedResponse) coapResponse).getBlockStream();
+				if (httpResponse.getEntity() != null) {
+					// the blocks are relayed untouched, so declare the charset
+					// of the coap payload
+					httpResponse.setHeader("content-type", HttpTranslator.getHttpContentType(coapResponse).toString());
+					httpExchange.submitResponse(new Block2ResponseProducer(httpResponse, coapResponse.getPayload(), blockStream));
+					return;
+				}
+				blockStream.cancel();
+			}
+
 			// send the response
 			httpExchange.submitResponse();
 		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see cz.msebera.android.httpclient.concurrent.Cancellable#cancel()
+		 */
+		public boolean cancel() {
+			// the http connection has been closed or has timed out: drop the
+			// pending exchange without sending anything
+			if (markDone()) {
+				LOGGER.finer("Http exchange cancelled");
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Marks the exchange as done and releases the resources linked to it.
+		 * 
+		 * @return true, if the caller is the one that completed the exchange
+		 */
+		private boolean markDone() {
+			if (!done.compareAndSet(false, true)) {
+				return false;
+			}
+			// release the admission slot
+			finish();
+			// remove the entry from the table
+			exchangeTable.remove(correlationId, this);
+			HashedWheelTimer.Timeout handle = timeoutHandle;
+			if (handle != null) {
+				handle.cancel();
+			}
+//			if (Bench_Help.DO_LOG) 
+				LOGGER.finer("Entry removed from table");
+			return true;
+		}
 	}
 
 	private class HttpServer {
@@ -322,7 +631,9 @@ public class HttpStack {
 
 			// Create HTTP protocol processing chain
 			// Use standard server-side protocol interceptors
-			HttpRequestInterceptor[] requestInterceptors = new HttpRequestInterceptor[] { new RequestAcceptEncoding() };
+			// no RequestAcceptEncoding: it would claim for every client that
+			// it accepts the compressed responses of the cache
+			HttpRequestInterceptor[] requestInterceptors = new HttpRequestInterceptor[] {};
 			HttpResponseInterceptor[] responseInterceptors = new HttpResponseInterceptor[] { new ResponseContentEncoding(), new ResponseDate(), new ResponseServer(), new ResponseContent(), new ResponseConnControl() };
 			HttpProcessor httpProcessor = new ImmutableHttpProcessor(requestInterceptors, responseInterceptors);
 
@@ -333,12 +644,28 @@ public class HttpStack {
 			registry.register("/" + PROXY_RESOURCE_NAME + "/*", new ProxyAsyncRequestHandler(PROXY_RESOURCE_NAME, true));
 			// register the handler for the frontend
 			registry.register("/" + LOCAL_RESOURCE_NAME + "/*", new ProxyAsyncRequestHandler(LOCAL_RESOURCE_NAME, false));
+			// register the handler of the event streams
+			registry.register("/" + OBSERVE_RESOURCE_NAME + "/*", new ObserveAsyncRequestHandler());
 			// register the default handler for root URIs
 			// wrapping a common request handler with an async request handler
 			registry.register("*", new BasicAsyncRequestHandler(new BaseRequestHandler()));
 
 			// Create server-side HTTP protocol handler
-			HttpAsyncService protocolHandler = new HttpAsyncService(httpProcessor, new DefaultConnectionReuseStrategy(), registry, params);
+			HttpAsyncService protocolHandler = new HttpAsyncService(httpProcessor, new DefaultConnectionReuseStrategy(), registry, params) {
+				@Override
+				protected HttpAsyncResponseProducer handleException(Exception ex, HttpContext context) {
+					// the rest of the body is not read, so the connection
+					// cannot be reused
+					if (ex instanceof BufferedRequestConsumer.OverloadException) {
+						HttpResponse response = createClosingResponse(HttpTranslator.STATUS_SERVICE_UNAVAILABLE);
+						response.setHeader("Retry-After", Integer.toString(RETRY_AFTER));
+						return new BasicAsyncResponseProducer(response);
+					} else if (ex instanceof ContentTooLongException) {
+						return new BasicAsyncResponseProducer(createClosingResponse(HttpStatus.SC_REQUEST_TOO_LONG));
+					}
+					return super.handleException(ex, context);
+				}
+			};
 
 			// Create HTTP connection factory
 			NHttpConnectionFactory<DefaultNHttpServerConnection> connFactory = new DefaultNHttpServerConnectionFactory(params);
@@ -346,39 +673,97 @@ public class HttpStack {
 			// Create server-side I/O event dispatch
 			final IOEventDispatch ioEventDispatch = new DefaultHttpServerIODispatch(protocolHandler, connFactory);
 
-			final ListeningIOReactor ioReactor;
-			try {
-				// Create server-side I/O reactor
-				ioReactor = new DefaultListeningIOReactor();
-				// Listen of the given port
-				LOGGER.info("HttpStack listening on port "+httpPort);
-				ioReactor.listen(new InetSocketAddress(httpPort));
-
-				// create the listener thread
-				Thread listener = new Thread("HttpStack listener") {
-
-					@Override
-					public void run() {
-						// Starts the reactor and initiates the dispatch of I/O
-						// event notifications to the given IOEventDispatch.
-						try {
-							LOGGER.info("Submitted http listening to thread 'HttpStack listener'");
-
-							ioReactor.execute(ioEventDispatch);
-						} catch (IOException e) {
-							LOGGER.severe("I/O Exception in HttpStack: " + e.getMessage());
+			// assign the listening endpoints to the reactors, each one with
+			// its own listener thread and its own i/o dispatchers
+			List<InetSocketAddress> addresses = getListenAddresses(httpPort);
+			int reactorCount = Math.max(1, Math.min(REACTOR_COUNT, addresses.size()));
+			if (reactorCount < REACTOR_COUNT) {
+				LOGGER.warning("Only " + reactorCount + " http reactors started, one per listening endpoint");
+			}
+			IOReactorConfig reactorConfig = createReactorConfig(reactorCount);
+			for (int i = 0; i < reactorCount; i++) {
+				try {
+					// Create server-side I/O reactor
+					final ListeningIOReactor ioReactor = new DefaultListeningIOReactor(reactorConfig);
+					for (int j = i; j < addresses.size(); j += reactorCount) {
+						// Listen of the given address
+						LOGGER.info("HttpStack listening on " + addresses.get(j));
+						ioReactor.listen(addresses.get(j));
+					}
+
+					// create the listener thread
+					final String threadName = reactorCount == 1 ? "HttpStack listener" : "HttpStack listener-" + i;
+					Thread listener = new Thread(threadName) {
+
+						@Override
+						public void run() {
+							// Starts the reactor and initiates the dispatch of I/O
+							// event notifications to the given IOEventDispatch.
+							try {
+								LOGGER.info("Submitted http listening to thread '" + threadName + "'");
+
+								ioReactor.execute(ioEventDispatch);
+							} catch (IOException e) {
+								LOGGER.severe("I/O Exception in HttpStack: " + e.getMessage());
+							}
+
+							LOGGER.info("Shutdown HttpStack");
 						}
+					};
 
-						LOGGER.info("Shutdown HttpStack");
-					}
-				};
+					listener.setDaemon(false);
+					listener.start();
+				} catch (IOException e) {
+					LOGGER.severe("I/O error: " + e.getMessage());
+				}
+			}
+			LOGGER.info("HttpStack started with " + reactorCount + " reactors of " + reactorConfig.getIoThreadCount() + " i/o dispatchers");
+		}
 
-				listener.setDaemon(false);
-				listener.start();
-				LOGGER.info("HttpStack started");
-			} catch (IOException e) {
-				LOGGER.severe("I/O error: " + e.getMessage());
+		/**
+		 * Creates the configuration of the reactors. By default the available
+		 * cores are split among the reactors, each i/o dispatcher serving the
+		 * connections assigned to it for their whole life.
+		 */
+		private IOReactorConfig createReactorConfig(int reactorCount) {
+			int ioThreadCount = IO_THREAD_COUNT > 0 ? IO_THREAD_COUNT
+					: Math.max(1, Runtime.getRuntime().availableProcessors() / reactorCount);
+			return IOReactorConfig.custom()
+					.setIoThreadCount(ioThreadCount)
+					.setSelectInterval(SELECT_INTERVAL)
+					.setSoTimeout(SOCKET_TIMEOUT)
+					.setSndBufSize(SND_BUF_SIZE)
+					.setRcvBufSize(RCV_BUF_SIZE)
+					.setSoReuseAddress(true)
+					.setTcpNoDelay(true)
+					.build();
+		}
+
+		/**
+		 * Gets the endpoints to listen on: the http port on every interface
+		 * and the additional host:port pairs of the configuration.
+		 */
+		private List<InetSocketAddress> getListenAddresses(int httpPort) {
+			List<InetSocketAddress> addresses = new LinkedList<InetSocketAddress>();
+			addresses.add(new InetSocketAddress(httpPort));
+			for (String address : LISTEN_ADDRESSES.split(",")) {
+				address = address.trim();
+				if (address.isEmpty()) {
+					continue;
+				}
+				int separator = address.lastIndexOf(':');
+				try {
+					if (separator < 0) {
+						addresses.add(new InetSocketAddress(Integer.parseInt(address)));
+					} else {
+						addresses.add(new InetSocketAddress(address.substring(0, separator),
+								Integer.parseInt(address.substring(separator + 1))));
+					}
+				} catch (IllegalArgumentException e) {
+					LOGGER.warning("Ignoring the malformed listening address " + address);
+				}
 			}
+			return addresses;
 		}
 
 		/**
@@ -453,27 +838,45 @@ public class HttpStack {
 				  // ** end 此处修改 
 				  
 					// translate the request in a valid coap request
-					Request coapRequest = HttpTranslator.getCoapRequest(httpRequest, localResource, proxyingEnabled);
+					long translationStart = System.nanoTime();
+					final Request coapRequest = HttpTranslator.getCoapRequest(httpRequest, localResource, proxyingEnabled);
+					LatencyStats.getStandard().record(LatencyStats.Stage.REQUEST_TRANSLATION, translationStart);
 //					if (Bench_Help.DO_LOG) 
-						LOGGER.info("Received HTTP request and translate to "+coapRequest);
-
-					// fill the maps
-					exchangeMap.put(coapRequest, new Exchanger<Response>());
-//					if (Bench_Help.DO_LOG) 
-						LOGGER.finer("Fill exchange with: " + coapRequest+" with hash="+coapRequest.hashCode());
-
-					// We create two threads
-                                        // The responseWorker will be in charge of producing a CoapResponse (producer)
-                                        // The requestWorker will be in charge of using this response to return it to the client
-                                        Thread requestWorker = new CoapRequestWorker("HttpStart Worker: consummer", coapRequest);
-                                        Thread responseWorker = new CoapResponseWorker("HttpStack Worker: producer", coapRequest, httpExchange, httpRequest, requestWorker);
+					if (LOGGER.isLoggable(Level.FINER)) {
+						LOGGER.finer("Received HTTP request and translate to " + coapRequest);
+					}
 
-					// starting the producer and consummer thread
-					requestWorker.start();
-					responseWorker.start();
+					// the response to a get can be relayed block by block
+					if (coapRequest.getCode() == Code.GET) {
+						Block2Stream.acceptStreaming(coapRequest);
+					}
 
+					// fill the table
+					long correlationId = assignCorrelationId(coapRequest);
+					final ProxyResponseCallback callback = new ProxyResponseCallback(coapRequest, correlationId, httpExchange, httpRequest);
+					exchangeTable.put(correlationId, callback, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(EXCHANGE_LIFETIME));
 //					if (Bench_Help.DO_LOG) 
-						LOGGER.finer("Started thread 'httpStack worker' to wait the response");
+						LOGGER.finer("Fill exchange with: " + coapRequest + " with correlation id " + correlationId);
+
+					// release the pending exchange if the client goes away
+					// and bound the wait for the coap response
+					httpExchange.setCallback(callback);
+					callback.scheduleTimeout();
+
+					// hand the coap request to the proxy on the shared
+					// executor once admitted, the response will complete the
+					// callback
+					switch (admissionController.admit(callback)) {
+					case QUEUED:
+						// push back on the client while the request waits
+						callback.suspendInput((IOControl) httpContext.getAttribute(HttpCoreContext.HTTP_CONNECTION));
+						break;
+					case REJECTED:
+						callback.reject();
+						break;
+					default:
+						break;
+					}
 
 				} catch (InvalidMethodException e) {
 					LOGGER.warning("Method not implemented" + e.getMessage());
@@ -498,7 +901,89 @@ public class HttpStack {
 			 * cz.msebera.android.httpclient.protocol.HttpContext)
 			 */
 			public HttpAsyncRequestConsumer<HttpRequest> processRequest(HttpRequest httpRequest, HttpContext httpContext) throws HttpException, IOException {
-				// Buffer request content in memory for simplicity
+				// read the request content in a single array, within the budget of the
+				// bodies being read
+				return new BufferedRequestConsumer();
+			}
+		}
+
+		/**
+		 * Class associated with the http service to subscribe the http clients
+		 * to the notifications of a coap resource. The response is an event
+		 * stream that stays open until the client or the observation goes
+		 * away.
+		 */
+		private class ObserveAsyncRequestHandler implements HttpAsyncRequestHandler<HttpRequest> {
+
+			/*
+			 * (non-Javadoc)
+			 * @see
+			 * cz.msebera.android.httpclient.nio.protocol.HttpAsyncRequestHandler#handle(java.
+			 * lang.Object, cz.msebera.android.httpclient.nio.protocol.HttpAsyncExchange,
+			 * cz.msebera.android.httpclient.protocol.HttpContext)
+			 */
+			public void handle(HttpRequest httpRequest, HttpAsyncExchange httpExchange, HttpContext httpContext) throws HttpException, IOException {
+				LOGGER.finer("Incoming subscription: " + httpRequest.getRequestLine());
+
+				String httpMethod = httpRequest.getRequestLine().getMethod().toLowerCase();
+				if (httpMethod.equals("options")) {
+					handleOptions(httpRequest, httpExchange, httpContext);
+					return;
+				}
+				if (!httpMethod.equals("get")) {
+					LOGGER.warning("Method not implemented for subscriptions: " + httpMethod);
+					sendSimpleHttpResponse(httpExchange, HttpTranslator.STATUS_WRONG_METHOD);
+					return;
+				}
+
+				String uri;
+				try {
+					uri = getObservedUri(httpRequest.getRequestLine().getUri());
+				} catch (IllegalArgumentException e) {
+					LOGGER.warning("Malformed uri: " + e.getMessage());
+					sendSimpleHttpResponse(httpExchange, HttpTranslator.STATUS_URI_MALFORMED);
+					return;
+				}
+
+				ObserveRelay.Subscriber subscriber = observeRelay.subscribe(uri);
+				if (subscriber == null) {
+					sendOverloadResponse(httpExchange);
+					return;
+				}
+				// the producer writes the events as they are published
+				httpExchange.submitResponse(subscriber);
+			}
+
+			/**
+			 * Gets the uri of the observed coap resource, following the
+			 * conventions of the proxy and local resources.
+			 */
+			private String getObservedUri(String requestUri) throws UnsupportedEncodingException {
+				// remove "/observe/" and decode the uri
+				String uri = requestUri.substring(OBSERVE_RESOURCE_NAME.length() + 2);
+				uri = URLDecoder.decode(uri, "UTF-8");
+				if (uri.isEmpty()) {
+					throw new IllegalArgumentException("No resource to observe");
+				}
+				if (uri.startsWith(LOCAL_RESOURCE_NAME + "/")) {
+					return "coap://localhost:" + COAP_PORT + uri.substring(LOCAL_RESOURCE_NAME.length());
+				}
+				// if the uri hasn't the indication of the scheme, add it
+				if (!uri.matches("^coaps?://.*")) {
+					uri = "coap://" + uri;
+				}
+				return uri;
+			}
+
+			/*
+			 * (non-Javadoc)
+			 * @see
+			 * cz.msebera.android.httpclient.nio.protocol.HttpAsyncRequestHandler#processRequest
+			 * (cz.msebera.android.httpclient.HttpRequest,
+			 * cz.msebera.android.httpclient.protocol.HttpContext)
+			 */
+			public HttpAsyncRequestConsumer<HttpRequest> processRequest(HttpRequest httpRequest, HttpContext httpContext) throws HttpException, IOException {
+				// a subscription has no content
 				return new BasicAsyncRequestConsumer();
 			}
 		}
@@ -33,9 +33,12 @@ import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.UnmappableCharacterException;
 import java.nio.charset.UnsupportedCharsetException;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 
@@ -49,6 +52,7 @@ import org.eclipse.californium.core.coap.OptionNumberRegistry;
 import org.eclipse.californium.core.coap.OptionNumberRegistry.optionFormats;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.proxy.resources.ProxyCacheResource;
 
 import cz.msebera.android.httpclient.Header;
 import cz.msebera.android.httpclient.HttpEntity;
@@ -60,6 +64,7 @@ import cz.msebera.android.httpclient.HttpStatus;
 import cz.msebera.android.httpclient.HttpVersion;
 import cz.msebera.android.httpclient.RequestLine;
 import cz.msebera.android.httpclient.StatusLine;
+import cz.msebera.android.httpclient.client.utils.DateUtils;
 import cz.msebera.android.httpclient.entity.AbstractHttpEntity;
 import cz.msebera.android.httpclient.entity.ByteArrayEntity;
 import cz.msebera.android.httpclient.entity.ContentType;
@@ -101,6 +106,7 @@ public final class HttpTranslator {
 	public static final int STATUS_TRANSLATION_ERROR = HttpStatus.SC_BAD_GATEWAY;
 	public static final int STATUS_URI_MALFORMED = HttpStatus.SC_BAD_REQUEST;
 	public static final int STATUS_WRONG_METHOD = HttpStatus.SC_NOT_IMPLEMENTED;
+	public static final int STATUS_SERVICE_UNAVAILABLE = HttpStatus.SC_SERVICE_UNAVAILABLE;
 
 	protected static final Logger LOGGER = Logger.getLogger(HttpTranslator.class.getName());
 
@@ -265,18 +271,11 @@ public final class HttpTranslator {
 						}
 					}
 				} else if (optionNumber == OptionNumberRegistry.MAX_AGE) {
-					int maxAge = 0;
-					if (!headerValue.contains("no-cache")) {
-						headerValue = headerValue.split(",")[0];
-						if (headerValue != null) {
-							int index = headerValue.indexOf('=');
-							try {
-								maxAge = Integer.parseInt(headerValue.substring(index + 1).trim());
-							} catch (NumberFormatException e) {
-								LOGGER.warning("Cannot convert cache control in max-age option");
-								continue;
-							}
-						}
+					Long maxAge = getMaxAge(headerValue);
+					if (maxAge == null) {
+						// no freshness directive, the expires header may give
+						// the lifetime
+						continue;
 					}
 					// create the option
 					Option option = new Option(optionNumber, maxAge);
@@ -333,8 +332,13 @@ public final class HttpTranslator {
 
 		byte[] payload = null;
 		try {
-			// get the bytes from the entity
-			payload = EntityUtils.toByteArray(httpEntity);
+			// get the bytes from the entity, without copies if it has been
+			// read by the buffered consumer
+			if (httpEntity instanceof BufferedRequestConsumer.PayloadEntity) {
+				payload = ((BufferedRequestConsumer.PayloadEntity) httpEntity).getPayload();
+			} else {
+				payload = EntityUtils.toByteArray(httpEntity);
+			}
 			if (payload != null && payload.length > 0) {
 
 				// the only supported charset in CoAP is UTF-8
@@ -377,7 +381,8 @@ public final class HttpTranslator {
 	 * CoAP options are set translating the headers. If the HTTP message has an
 	 * enclosing entity, it is converted to create the payload of the CoAP
 	 * message; finally the content-type is set accordingly to the header and to
-	 * the entity type.
+	 * the entity type. The tags of the Cache-Tag header, separated by commas,
+	 * tag the response cached, see {@link ProxyCacheResource#tagRequest}.
 	 * 
 	 * @param httpRequest
 	 *            the http request
@@ -500,6 +505,33 @@ public final class HttpTranslator {
 			coapRequest.getOptions().setContentFormat(coapContentType);
 		}
 
+		// the compressed representations of the cache can be sent as they
+		// are if the client accepts them
+		Header acceptEncoding = httpRequest.getFirstHeader("accept-encoding");
+		if (acceptEncoding != null) {
+			Map<String, String> context = new HashMap<String, String>();
+			EncodedResponse.setContentCoding(acceptEncoding.getValue(), context);
+			if (!context.isEmpty()) {
+				coapRequest.setUserContext(context);
+			}
+		}
+
+		// the tags of the response once cached, to invalidate it with the
+		// others of the same tag, e.g., the resources of a device
+		Header cacheTag = httpRequest.getFirstHeader("cache-tag");
+		if (cacheTag != null) {
+			List<String> tags = new LinkedList<String>();
+			for (String tag : cacheTag.getValue().split(",")) {
+				tag = tag.trim();
+				if (!tag.isEmpty()) {
+					tags.add(tag);
+				}
+			}
+			if (!tags.isEmpty()) {
+				ProxyCacheResource.tagRequest(coapRequest, tags.toArray(new String[tags.size()]));
+			}
+		}
+
 		return coapRequest;
 	}
 
@@ -509,8 +541,9 @@ public final class HttpTranslator {
 	 * code retrieved from the properties file. If the code is 204, which has
 	 * multiple meaning, the mapping is handled looking on the request method
 	 * that has originated the response. The options are set thorugh the HTTP
-	 * headers and the option max-age, if not indicated, is set to the default
-	 * value (60 seconds). if the response has an enclosing entity, it is mapped
+	 * headers and the option max-age, taken from the cache-control or the
+	 * expires header, if not indicated, is set to the default value (60
+	 * seconds). if the response has an enclosing entity, it is mapped
 	 * to a CoAP payload and the content-type of the CoAP message is set
 	 * properly.
 	 * 
@@ -570,6 +603,15 @@ public final class HttpTranslator {
 		for (Option option:coapOptions)
 			coapResponse.getOptions().addOption(option);
 
+		// without a freshness directive, the lifetime is the time from the
+		// date of the response to its expiration (RFC 7234, Section 4.2.1)
+		if (!coapResponse.getOptions().hasMaxAge()) {
+			Long maxAge = getExpiresMaxAge(httpResponse);
+			if (maxAge != null) {
+				coapResponse.getOptions().setMaxAge(maxAge);
+			}
+		}
+
 		// the response should indicate a max-age value (RFC 7252, Section 10.1.1)
 		if (!coapResponse.getOptions().hasMaxAge()) {
 			// The Max-Age Option for responses to POST, PUT or DELETE requests
@@ -598,6 +640,50 @@ public final class HttpTranslator {
 		return coapResponse;
 	}
 
+	/**
+	 * Gets the HTTP content-type of the payload of a CoAP message. If the
+	 * content-format is not set or not recognized, application/octet-stream is
+	 * returned; the printable formats have the UTF-8 charset of CoAP.
+	 * 
+	 * @param coapMessage
+	 *            the coap message
+	 * @return the content type
+	 */
+	public static ContentType getHttpContentType(Message coapMessage) {
+		if (coapMessage == null) {
+			throw new IllegalArgumentException("coapMessage == null");
+		}
+
+		// if the content type is not set, translate with octect-stream
+		if (! coapMessage.getOptions().hasContentFormat()) {
+			return ContentType.APPLICATION_OCTET_STREAM;
+		}
+
+		int coapContentType = coapMessage.getOptions().getContentFormat();
+		// search for the media type inside the property file
+		String coapContentTypeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_COAP_MEDIA + coapContentType);
+
+		// if the content-type has not been found in the property file,
+		// try to get its string value (expressed in mime type)
+		if (coapContentTypeString == null || coapContentTypeString.isEmpty()) {
+			coapContentTypeString = MediaTypeRegistry.toString(coapContentType);
+
+			// if the coap content-type is printable, it is needed to
+			// set the default charset (i.e., UTF-8)
+			if (MediaTypeRegistry.isPrintable(coapContentType)) {
+				coapContentTypeString += "; charset=UTF-8";
+			}
+		}
+
+		// parse the content type
+		try {
+			return ContentType.parse(coapContentTypeString);
+		} catch (UnsupportedCharsetException e) {
+			LOGGER.finer("Cannot convert string to ContentType: " + e.getMessage());
+			return ContentType.APPLICATION_OCTET_STREAM;
+		}
+	}
+
 	/**
 	 * Generates an HTTP entity starting from a CoAP request. If the coap
 	 * message has no payload, it returns a null http entity. It takes the
@@ -628,36 +714,7 @@ public final class HttpTranslator {
 		byte[] payload = coapMessage.getPayload();
 		if (payload != null && payload.length != 0) {
 
-			ContentType contentType = null;
-
-			// if the content type is not set, translate with octect-stream
-			if (! coapMessage.getOptions().hasContentFormat()) {
-				contentType = ContentType.APPLICATION_OCTET_STREAM;
-			} else {
-				int coapContentType = coapMessage.getOptions().getContentFormat();
-				// search for the media type inside the property file
-				String coapContentTypeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_COAP_MEDIA + coapContentType);
-
-				// if the content-type has not been found in the property file,
-				// try to get its string value (expressed in mime type)
-				if (coapContentTypeString == null || coapContentTypeString.isEmpty()) {
-					coapContentTypeString = MediaTypeRegistry.toString(coapContentType);
-
-					// if the coap content-type is printable, it is needed to
-					// set the default charset (i.e., UTF-8)
-					if (MediaTypeRegistry.isPrintable(coapContentType)) {
-						coapContentTypeString += "; charset=UTF-8";
-					}
-				}
-
-				// parse the content type
-				try {
-					contentType = ContentType.parse(coapContentTypeString);
-				} catch (UnsupportedCharsetException e) {
-					LOGGER.finer("Cannot convert string to ContentType: " + e.getMessage());
-					contentType = ContentType.APPLICATION_OCTET_STREAM;
-				}
-			}
+			ContentType contentType = getHttpContentType(coapMessage);
 
 			// get the charset
 			Charset charset = contentType.getCharset();
@@ -836,8 +893,40 @@ public final class HttpTranslator {
 			httpRequest.addHeader(header);
 		}
 
+		// the etags of a request are the validators of the representations
+		// already known, i.e., an http precondition
+		List<byte[]> etags = coapRequest.getOptions().getETags();
+		if (!etags.isEmpty()) {
+			httpRequest.removeHeaders("Etag");
+			httpRequest.setHeader("If-None-Match", getIfNoneMatch(etags));
+		}
+
 		return httpRequest;
 	}
+
+	/**
+	 * Gets the value of the http If-None-Match header matching coap etags.
+	 * The etags not quoted yet are quoted.
+	 * 
+	 * @param etags
+	 *            the coap etags
+	 * @return the value of the header
+	 */
+	public static String getIfNoneMatch(List<byte[]> etags) {
+		StringBuilder ifNoneMatch = new StringBuilder();
+		for (byte[] etag : etags) {
+			if (ifNoneMatch.length() > 0) {
+				ifNoneMatch.append(", ");
+			}
+			String entityTag = new String(etag, ISO_8859_1);
+			if (entityTag.startsWith("\"") || entityTag.startsWith("W/")) {
+				ifNoneMatch.append(entityTag);
+			} else {
+				ifNoneMatch.append('"').append(entityTag).append('"');
+			}
+		}
+		return ifNoneMatch.toString();
+	}
 	
 	/**
 	 * Sets the parameters of the incoming http response from a CoAP response.
@@ -914,7 +1003,18 @@ public final class HttpTranslator {
 				coapResponse.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
 			}
 
-			HttpEntity httpEntity = getHttpEntity(coapResponse);
+			HttpEntity httpEntity;
+			if (coapResponse instanceof EncodedResponse) {
+				// the payload is compressed, it is sent untouched with the
+				// charset of the coap payload
+				ByteArrayEntity encodedEntity = new ByteArrayEntity(coapResponse.getPayload());
+				encodedEntity.setContentType(getHttpContentType(coapResponse).toString());
+				httpEntity = encodedEntity;
+				httpResponse.setHeader("content-encoding", ((EncodedResponse) coapResponse).getContentCoding());
+				httpResponse.setHeader("vary", "accept-encoding");
+			} else {
+				httpEntity = getHttpEntity(coapResponse);
+			}
 			if (httpEntity != null) {
 				httpResponse.setEntity(httpEntity);
 
@@ -967,6 +1067,72 @@ public final class HttpTranslator {
 		return payload;
 	}
 
+	/**
+	 * Gets the max-age from the directives of a cache-control header, as seen
+	 * by a shared cache: the responses marked no-cache, no-store or private
+	 * are not to be reused, and s-maxage overrides max-age.
+	 * 
+	 * @param cacheControl
+	 *            the value of the header
+	 * 
+	 * @return the max-age in seconds, or null if the header has no freshness
+	 *         directive
+	 */
+	private static Long getMaxAge(String cacheControl) {
+		Long maxAge = null;
+		Long sharedMaxAge = null;
+		for (String directive : cacheControl.toLowerCase(Locale.ENGLISH).split(",")) {
+			directive = directive.trim();
+			int index = directive.indexOf('=');
+			String name = index < 0 ? directive : directive.substring(0, index).trim();
+			if (name.equals("no-cache") || name.equals("no-store") || name.equals("private")) {
+				return 0L;
+			}
+			if (index < 0 || !(name.equals("max-age") || name.equals("s-maxage"))) {
+				continue;
+			}
+			long seconds;
+			try {
+				seconds = Math.max(0, Long.parseLong(directive.substring(index + 1).replace("\"", "").trim()));
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Cannot convert cache control in max-age option");
+				continue;
+			}
+			if (name.equals("max-age")) {
+				maxAge = seconds;
+			} else {
+				sharedMaxAge = seconds;
+			}
+		}
+		return sharedMaxAge != null ? sharedMaxAge : maxAge;
+	}
+
+	/**
+	 * Gets the max-age from the expires header of a response, relative to its
+	 * date header, or to the current time if it has none.
+	 * 
+	 * @param httpResponse
+	 *            the http response
+	 * 
+	 * @return the max-age in seconds, or null if the response has no expires
+	 *         header
+	 */
+	private static Long getExpiresMaxAge(HttpResponse httpResponse) {
+		Header expiresHeader = httpResponse.getFirstHeader("expires");
+		if (expiresHeader == null) {
+			return null;
+		}
+		Date expires = DateUtils.parseDate(expiresHeader.getValue());
+		if (expires == null) {
+			// an invalid date, such as 0, means already expired
+			return 0L;
+		}
+		Header dateHeader = httpResponse.getFirstHeader("date");
+		Date date = dateHeader == null ? null : DateUtils.parseDate(dateHeader.getValue());
+		long now = date == null ? System.currentTimeMillis() : date.getTime();
+		return Math.max(0, (expires.getTime() - now) / 1000);
+	}
+
 	/**
 	 * The Constructor is private because the class is an helper class and
 	 * cannot be instantiated.
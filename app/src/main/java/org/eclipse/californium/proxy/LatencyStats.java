@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Latencies of the stages of the proxy pipeline, and of the forwarding to
+ * each upstream host. The number of hosts tracked is bounded, the latencies
+ * of the hosts beyond the bound are gathered under {@link #OTHER_HOSTS}.
+ */
+public final class LatencyStats {
+
+	/** The stages of a proxied request. */
+	public enum Stage {
+		/** Reception of the http request body. */
+		HTTP_PARSING,
+		/** {@link HttpTranslator#getCoapRequest}. */
+		REQUEST_TRANSLATION,
+		/** Lookup of the cached response. */
+		CACHE_LOOKUP,
+		/** Forwarding of the request to the server. */
+		UPSTREAM,
+		/** {@link HttpTranslator#getHttpResponse}. */
+		RESPONSE_TRANSLATION
+	}
+
+	public static final String OTHER_HOSTS = "(other)";
+
+	private static final int MAX_HOSTS = 256;
+
+	private static final LatencyStats STANDARD = new LatencyStats();
+
+	private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+	private final ConcurrentHashMap<String, LatencyHistogram> hosts = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private LatencyStats() {
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @return the statistics of the proxy
+	 */
+	public static LatencyStats getStandard() {
+		return STANDARD;
+	}
+
+	/**
+	 * Records the latency of a stage.
+	 *
+	 * @param stage
+	 *            the stage
+	 * @param start
+	 *            the {@link System#nanoTime()} at the beginning of the stage
+	 */
+	public void record(Stage stage, long start) {
+		stages[stage.ordinal()].record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Records the latency of a request forwarded to a server.
+	 *
+	 * @param host
+	 *            the server
+	 * @param start
+	 *            the {@link System#nanoTime()} at which the request was sent
+	 */
+	public void recordUpstream(String host, long start) {
+		long latency = System.nanoTime() - start;
+		stages[Stage.UPSTREAM.ordinal()].record(latency);
+		getHostHistogram(host).record(latency);
+	}
+
+	/**
+	 * @param stage
+	 *            the stage
+	 * @return the histogram of the stage
+	 */
+	public LatencyHistogram getHistogram(Stage stage) {
+		return stages[stage.ordinal()];
+	}
+
+	/**
+	 * @return the histograms of the upstream hosts, sorted by host
+	 */
+	public Map<String, LatencyHistogram> getHostHistograms() {
+		return new TreeMap<String, LatencyHistogram>(hosts);
+	}
+
+	/**
+	 * Clears all the histograms.
+	 */
+	public void reset() {
+		for (LatencyHistogram histogram : stages) {
+			histogram.reset();
+		}
+		hosts.clear();
+	}
+
+	private LatencyHistogram getHostHistogram(String host) {
+		LatencyHistogram histogram = hosts.get(host);
+		if (histogram == null) {
+			if (hosts.size() >= MAX_HOSTS) {
+				host = OTHER_HOSTS;
+			}
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = hosts.putIfAbsent(host, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+}
@@ -0,0 +1,403 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+
+import cz.msebera.android.httpclient.HttpResponse;
+import cz.msebera.android.httpclient.HttpStatus;
+import cz.msebera.android.httpclient.HttpVersion;
+import cz.msebera.android.httpclient.entity.BasicHttpEntity;
+import cz.msebera.android.httpclient.message.BasicHttpResponse;
+import cz.msebera.android.httpclient.nio.ContentEncoder;
+import cz.msebera.android.httpclient.nio.IOControl;
+import cz.msebera.android.httpclient.nio.protocol.HttpAsyncResponseProducer;
+import cz.msebera.android.httpclient.protocol.HttpContext;
+
+
+/**
+ * Relays the notifications of observable coap resources to http clients as
+ * server-sent events. All the subscribers of a resource share a single coap
+ * observe relation, which is cancelled when the last subscriber goes away.
+ * Each subscriber is a response producer writing its pending events when the
+ * reactor asks for output, so no thread is held by a subscriber. The
+ * subscribers also receive a periodic comment, which keeps the connection
+ * below the socket timeout when the resource is quiet.
+ */
+public class ObserveRelay {
+
+	private static final Logger LOGGER = Logger.getLogger(ObserveRelay.class.getCanonicalName());
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String CONTENT_TYPE = "text/event-stream; charset=UTF-8";
+
+	/** Events kept for a slow subscriber, the oldest are dropped first. */
+	private static final int MAX_PENDING_EVENTS = 16;
+
+	private final HashedWheelTimer timer;
+	private final long heartbeatInterval;
+	private final int maxSubscribers;
+
+	// guarded by this
+	private final Map<String, SharedObservation> observations = new HashMap<String, SharedObservation>();
+	private final AtomicInteger subscriberCount = new AtomicInteger();
+
+	/**
+	 * Instantiates a new relay.
+	 *
+	 * @param timer
+	 *            the timer sending the heartbeats
+	 * @param heartbeatInterval
+	 *            the interval between heartbeats in milliseconds
+	 * @param maxSubscribers
+	 *            the maximum number of subscribers at the same time
+	 */
+	public ObserveRelay(HashedWheelTimer timer, long heartbeatInterval, int maxSubscribers) {
+		this.timer = timer;
+		this.heartbeatInterval = heartbeatInterval;
+		this.maxSubscribers = maxSubscribers;
+		scheduleHeartbeat();
+	}
+
+	/**
+	 * Subscribes to the notifications of a coap resource, starting the
+	 * observation if nobody observes the resource yet. The latest notification
+	 * received is sent immediately to the new subscriber.
+	 *
+	 * @param uri
+	 *            the uri of the coap resource
+	 * @return the producer of the event stream, or null if the relay has too
+	 *         many subscribers
+	 */
+	public Subscriber subscribe(String uri) {
+		if (subscriberCount.incrementAndGet() > maxSubscribers) {
+			subscriberCount.decrementAndGet();
+			LOGGER.warning("Too many subscribers, cannot observe " + uri);
+			return null;
+		}
+		SharedObservation observation;
+		Subscriber subscriber;
+		boolean created = false;
+		synchronized (this) {
+			observation = observations.get(uri);
+			if (observation == null) {
+				observation = new SharedObservation(uri);
+				observations.put(uri, observation);
+				created = true;
+			}
+			// added under the lock, so that the observation cannot be
+			// stopped by the departure of its last subscriber meanwhile
+			subscriber = new Subscriber(observation);
+			observation.subscribers.add(subscriber);
+		}
+		if (created) {
+			observation.start();
+		} else {
+			String event = observation.lastEvent;
+			if (event != null) {
+				subscriber.publish(event);
+			}
+		}
+		return subscriber;
+	}
+
+	/**
+	 * @return the number of coap resources observed
+	 */
+	public synchronized int getObservationCount() {
+		return observations.size();
+	}
+
+	/**
+	 * @return the number of http subscribers
+	 */
+	public int getSubscriberCount() {
+		return subscriberCount.get();
+	}
+
+	private void scheduleHeartbeat() {
+		timer.newTimeout(new Runnable() {
+			public void run() {
+				List<SharedObservation> current;
+				synchronized (ObserveRelay.this) {
+					current = new LinkedList<SharedObservation>(observations.values());
+				}
+				for (SharedObservation observation : current) {
+					observation.publish(": keep-alive\n\n");
+				}
+				scheduleHeartbeat();
+			}
+		}, heartbeatInterval, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void remove(SharedObservation observation) {
+		if (observations.get(observation.uri) == observation) {
+			observations.remove(observation.uri);
+		}
+	}
+
+	/**
+	 * Formats a notification as an event.
+	 */
+	private static String toEvent(CoapResponse response) {
+		StringBuilder event = new StringBuilder();
+		Integer observe = response.getOptions().getObserve();
+		if (observe != null) {
+			event.append("id: ").append(observe).append('\n');
+		}
+		event.append("event: ").append(response.isSuccess() ? "notification" : "error").append('\n');
+		String data;
+		int format = response.getOptions().getContentFormat();
+		if (format == MediaTypeRegistry.UNDEFINED || MediaTypeRegistry.isPrintable(format)) {
+			data = response.getResponseText();
+		} else {
+			data = toHex(response.getPayload());
+		}
+		// every line of the payload is a data field
+		for (String line : data.split("\r\n|\r|\n", -1)) {
+			event.append("data: ").append(line).append('\n');
+		}
+		event.append('\n');
+		return event.toString();
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * A coap observe relation shared by the subscribers of a resource.
+	 */
+	private final class SharedObservation implements CoapHandler {
+		private final String uri;
+		private final CopyOnWriteArraySet<Subscriber> subscribers = new CopyOnWriteArraySet<Subscriber>();
+		private volatile CoapClient client;
+		private volatile CoapObserveRelation relation;
+		private volatile String lastEvent;
+		private volatile boolean closed;
+
+		SharedObservation(String uri) {
+			this.uri = uri;
+		}
+
+		synchronized void start() {
+			if (closed) {
+				return;
+			}
+			LOGGER.info("Observing " + uri);
+			client = new CoapClient(uri);
+			relation = client.observe(this);
+		}
+
+		void remove(Subscriber subscriber) {
+			boolean last;
+			synchronized (ObserveRelay.this) {
+				last = subscribers.remove(subscriber) && subscribers.isEmpty();
+				if (last) {
+					ObserveRelay.this.remove(this);
+				}
+			}
+			if (last) {
+				stop();
+			}
+		}
+
+		void publish(String event) {
+			for (Subscriber subscriber : subscribers) {
+				subscriber.publish(event);
+			}
+		}
+
+		public void onLoad(CoapResponse response) {
+			String event = toEvent(response);
+			lastEvent = event;
+			publish(event);
+			if (!response.getOptions().hasObserve()) {
+				// the resource is not observable or the relation is over
+				LOGGER.info("Observation of " + uri + " ended by " + response.getCode());
+				end();
+			}
+		}
+
+		public void onError() {
+			LOGGER.warning("Observation of " + uri + " failed");
+			publish("event: error\ndata: observation failed\n\n");
+			end();
+		}
+
+		/**
+		 * Ends the streams of all the subscribers.
+		 */
+		private void end() {
+			ObserveRelay.this.remove(this);
+			stop();
+			for (Subscriber subscriber : subscribers) {
+				subscriber.complete();
+			}
+		}
+
+		private synchronized void stop() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			CoapObserveRelation current = relation;
+			if (current != null && !current.isCanceled()) {
+				current.proactiveCancel();
+			}
+			if (client != null) {
+				client.shutdown();
+			}
+			LOGGER.info("Stopped observing " + uri);
+		}
+	}
+
+	/**
+	 * Producer of the event stream of an http subscriber.
+	 */
+	public final class Subscriber implements HttpAsyncResponseProducer {
+		private final SharedObservation observation;
+
+		// guarded by this
+		private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+		private IOControl ioControl;
+		private boolean completed;
+		private boolean closed;
+
+		private Subscriber(SharedObservation observation) {
+			this.observation = observation;
+		}
+
+		/**
+		 * Queues an event and wakes up the connection.
+		 */
+		void publish(String event) {
+			IOControl control;
+			synchronized (this) {
+				if (closed || completed) {
+					return;
+				}
+				if (pending.size() >= MAX_PENDING_EVENTS) {
+					pending.pollFirst();
+					LOGGER.finer("Slow subscriber, event dropped");
+				}
+				pending.addLast(ByteBuffer.wrap(event.getBytes(UTF_8)));
+				control = ioControl;
+			}
+			if (control != null) {
+				control.requestOutput();
+			}
+		}
+
+		/**
+		 * Ends the stream after the pending events.
+		 */
+		void complete() {
+			IOControl control;
+			synchronized (this) {
+				completed = true;
+				control = ioControl;
+			}
+			if (control != null) {
+				control.requestOutput();
+			}
+		}
+
+		public HttpResponse generateResponse() {
+			HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+			BasicHttpEntity entity = new BasicHttpEntity();
+			entity.setContentLength(-1);
+			entity.setChunked(true);
+			entity.setContentType(CONTENT_TYPE);
+			response.setEntity(entity);
+			response.setHeader("Content-Type", CONTENT_TYPE);
+			response.setHeader("Cache-Control", "no-cache");
+			response.setHeader("Access-Control-Allow-Origin", "*");
+			return response;
+		}
+
+		public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+			synchronized (this) {
+				ioControl = ioctrl;
+				ByteBuffer buffer;
+				while ((buffer = pending.peekFirst()) != null) {
+					encoder.write(buffer);
+					if (buffer.hasRemaining()) {
+						// the channel is full, wait for the next output event
+						return;
+					}
+					pending.pollFirst();
+				}
+				if (completed) {
+					encoder.complete();
+				} else {
+					ioctrl.suspendOutput();
+				}
+			}
+		}
+
+		public void responseCompleted(HttpContext context) {
+			release();
+		}
+
+		public void failed(Exception ex) {
+			release();
+		}
+
+		public void close() throws IOException {
+			release();
+		}
+
+		/**
+		 * Leaves the observation, once.
+		 */
+		private void release() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				pending.clear();
+				ioControl = null;
+			}
+			subscriberCount.decrementAndGet();
+			observation.remove(this);
+		}
+	}
+}
@@ -15,7 +15,9 @@ import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Exchange;
 import org.eclipse.californium.core.network.Exchange.Origin;
 import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.proxy.resources.ForwardingResource;
 import org.eclipse.californium.proxy.resources.ProxyCacheResource;
+import org.eclipse.californium.proxy.resources.ProxyCoapClientResource;
 import org.eclipse.californium.proxy.resources.StatsResource;
 
 
@@ -58,16 +60,25 @@ public class ProxyHttpServer {
 	public ProxyHttpServer(int httpPort) throws IOException {
 	
 		this.httpStack = new HttpStack(httpPort);
+		this.statsResource.addTimeoutStats(httpStack);
 		this.httpStack.setRequestHandler(new RequestHandler() {
 			public void handleRequest(Request request) {
 				ProxyHttpServer.this.handleRequest(request);
 			}
 		});
+		this.cacheResource.setRefreshHandler(new RequestHandler() {
+			public void handleRequest(Request request) {
+				refreshRequest(request);
+			}
+		});
 	}
 
 	public void handleRequest(final Request request) {
 		
-		LOGGER.info("ProxyEndpoint handles request "+request);
+		final boolean sampled = AccessLog.getStandard().sample(request);
+		if (sampled) {
+			AccessLog.getStandard().log(AccessLog.Event.REQUEST, request.getOptions().getProxyUri(), request.getCode(), 0);
+		}
 		
 		Exchange exchange = new Exchange(request, Origin.REMOTE) {
 
@@ -88,7 +99,9 @@ public class ProxyHttpServer {
 				try {
 					request.setResponse(response);
 					responseProduced(request, response);
-					httpStack.doSendResponse(request, response);
+					// a 2.03 to a request made conditional by the cache is
+					// answered with the representation revalidated
+					httpStack.doSendResponse(request, cacheResource.getRevalidatedResponse(request, response));
 				} catch (Exception e) {
 					LOGGER.log(Level.WARNING, "Exception while responding to Http request", e);
 				}
@@ -102,19 +115,30 @@ public class ProxyHttpServer {
 		if (request.getType() != Type.RST && request.getType() != Type.ACK 
 				&& request.getOptions().hasProxyUri()) {
 			// get the response from the cache
+			long lookupStart = System.nanoTime();
 			response = cacheResource.getResponse(request);
+			LatencyStats.getStandard().record(LatencyStats.Stage.CACHE_LOOKUP, lookupStart);
 
-				LOGGER.info("Cache returned "+response);
+			if (response != null && sampled) {
+				AccessLog.getStandard().log(AccessLog.Event.CACHE_HIT, request.getOptions().getProxyUri(), response.getCode(), 0);
+			}
 
-			// update statistics
-			statsResource.updateStatistics(request, response != null);
+			// update statistics, the cached errors and the answers for the
+			// unreachable servers are not hits of the cached resources
+			statsResource.updateStatistics(request, response != null && ResponseCode.isSuccess(response.getCode()));
 		}
 
 		// check if the response is present in the cache
 		if (response != null) {
 			// link the retrieved response with the request to set the
-			// parameters request-specific (i.e., token, id, etc)
-			exchange.sendResponse(response);
+			// parameters request-specific (i.e., token, id, etc), it is not
+			// cached again
+			try {
+				request.setResponse(response);
+				httpStack.doSendResponse(request, cacheResource.getRevalidatedResponse(request, response));
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Exception while responding to Http request", e);
+			}
 			return;
 		} else {
 
@@ -123,7 +147,9 @@ public class ProxyHttpServer {
 			if (request.getOptions().hasProxyUri()) {
 				try {
 					manageProxyUriRequest(request);
-					LOGGER.info("after manageProxyUriRequest: "+request);
+					if (LOGGER.isLoggable(Level.FINER)) {
+						LOGGER.finer("after manageProxyUriRequest: " + request);
+					}
 
 				} catch (URISyntaxException e) {
 					LOGGER.warning(String.format("Proxy-uri malformed: %s", request.getOptions().getProxyUri()));
@@ -144,6 +170,41 @@ public class ProxyHttpServer {
 		}
 	}
 
+	/**
+	 * Forwards a request refreshing the cache in the background. The response
+	 * is only cached, there is no client to answer.
+	 * 
+	 * @param request
+	 *            the request, with the proxy-uri of the cached response
+	 */
+	private void refreshRequest(final Request request) {
+		if (proxyCoapResolver == null) {
+			return;
+		}
+		Exchange exchange = new Exchange(request, Origin.REMOTE) {
+
+			@Override
+			public void sendAccept() {
+			}
+			@Override
+			public void sendReject() {
+			}
+			@Override
+			public void sendResponse(Response response) {
+				request.setResponse(response);
+				responseProduced(request, response);
+			}
+		};
+		exchange.setRequest(request);
+		try {
+			manageProxyUriRequest(request);
+		} catch (URISyntaxException e) {
+			LOGGER.warning(String.format("Proxy-uri malformed: %s", request.getOptions().getProxyUri()));
+			return;
+		}
+		proxyCoapResolver.forwardRequest(exchange);
+	}
+
 	/**
 	 * Manage proxy uri request.
 	 * 
@@ -169,7 +230,9 @@ public class ProxyHttpServer {
 			clientPath = PROXY_COAP_CLIENT;
 		}
 
-		LOGGER.info("Chose "+clientPath+" as clientPath");
+		if (LOGGER.isLoggable(Level.FINER)) {
+			LOGGER.finer("Chose " + clientPath + " as clientPath");
+		}
 
 		// set the path in the request to be forwarded correctly
 		request.getOptions().setUriPath(clientPath);
@@ -177,22 +240,40 @@ public class ProxyHttpServer {
 	}
 
 	protected void responseProduced(Request request, Response response) {
-		// check if the proxy-uri is defined
-		if (request.getOptions().hasProxyUri()) {
-				LOGGER.info("Cache response");
+		// check if the proxy-uri is defined, a streamed response carries
+		// only the first block and cannot be cached
+		if (request.getOptions().hasProxyUri() && !(response instanceof StreamedResponse)) {
+			LOGGER.finer("Cache response");
 			// insert the response in the cache
 			cacheResource.cacheResponse(request, response);
 		} else {
-				LOGGER.info("Do not cache response");
+			LOGGER.finer("Do not cache response");
 		}
 	}
 
+	/**
+	 * @return the cache of the proxy, which the forwarding resources can share
+	 */
+	public ProxyCacheResource getCacheResource() {
+		return cacheResource;
+	}
+
 	public ProxyCoapResolver getProxyCoapResolver() {
 		return proxyCoapResolver;
 	}
 
 	public void setProxyCoapResolver(ProxyCoapResolver proxyCoapResolver) {
 		this.proxyCoapResolver = proxyCoapResolver;
+
+		// the hot coap resources are observed by the same client
+		ProxyCoapClientResource observeClient = null;
+		if (proxyCoapResolver instanceof DirectProxyCoapResolver) {
+			ForwardingResource client = ((DirectProxyCoapResolver) proxyCoapResolver).getProxyCoapClientResource();
+			if (client instanceof ProxyCoapClientResource) {
+				observeClient = (ProxyCoapClientResource) client;
+			}
+		}
+		cacheResource.setObserveClient(observeClient);
 	}
 	
 }
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import org.eclipse.californium.core.network.config.NetworkConfig;
+
+
+/**
+ * The keys of the proxy that Californium does not define, with their default
+ * values. The defaults are registered in the standard {@link NetworkConfig}
+ * once, so that the proxy reads every key without a warning for the keys
+ * undefined. The values set before, e.g., by a properties file, are kept.
+ */
+public final class ProxyNetworkConfig {
+
+	// the standard configuration the defaults have been registered in
+	private static NetworkConfig registered;
+
+	private ProxyNetworkConfig() {
+	}
+
+	/**
+	 * Gets the standard configuration, registering the defaults of the proxy
+	 * if they are not yet.
+	 *
+	 * @return the standard configuration
+	 */
+	public static synchronized NetworkConfig getStandard() {
+		NetworkConfig config = NetworkConfig.getStandard();
+		if (config != registered) {
+			applyDefaults(config);
+			registered = config;
+		}
+		return config;
+	}
+
+	/**
+	 * Registers the defaults of the proxy in a configuration, for the keys it
+	 * does not define yet.
+	 *
+	 * @param config
+	 *            the configuration
+	 */
+	public static void applyDefaults(NetworkConfig config) {
+		// admission control of the coap server
+		setDefault(config, "COAP_SERVER_MAX_IN_FLIGHT", 64);
+		setDefault(config, "COAP_SERVER_QUEUE_CAPACITY", 256);
+		setDefault(config, "COAP_SERVER_QUEUE_TIMEOUT", config.getInt(NetworkConfig.Keys.ACK_TIMEOUT)); // [milliseconds]
+		setDefault(config, "COAP_SERVER_OVERLOAD_MAX_AGE", 5); // [seconds]
+
+		// admission control of the http server
+		setDefault(config, "HTTP_SERVER_MAX_IN_FLIGHT", 64);
+		setDefault(config, "HTTP_SERVER_QUEUE_CAPACITY", 256);
+		// half of the gateway timeout, i.e., 3/4 of the socket timeout
+		setDefault(config, "HTTP_SERVER_QUEUE_TIMEOUT",
+				config.getInt(NetworkConfig.Keys.HTTP_SERVER_SOCKET_TIMEOUT) * 3 / 8); // [milliseconds]
+		setDefault(config, "HTTP_SERVER_RETRY_AFTER", 5); // [seconds]
+
+		// reactors of the http server
+		setDefault(config, "HTTP_SERVER_REACTOR_COUNT", 1);
+		setDefault(config, "HTTP_SERVER_IO_THREAD_COUNT", 0); // 0: share the cores among the reactors
+		setDefault(config, "HTTP_SERVER_SELECT_INTERVAL", 1000); // [milliseconds]
+		setDefault(config, "HTTP_SERVER_SND_BUF_SIZE", config.getInt(NetworkConfig.Keys.HTTP_SERVER_SOCKET_BUFFER_SIZE));
+		setDefault(config, "HTTP_SERVER_RCV_BUF_SIZE", config.getInt(NetworkConfig.Keys.HTTP_SERVER_SOCKET_BUFFER_SIZE));
+		setDefault(config, "HTTP_SERVER_LISTEN_ADDRESSES", ""); // host:port,host:port
+		setDefault(config, "HTTP_SERVER_MAX_SUBSCRIBERS", 256);
+		setDefault(config, "HTTP_SERVER_MAX_BODY_SIZE", 8 * 1024 * 1024); // [bytes]
+		setDefault(config, "HTTP_SERVER_MAX_BUFFERED_BYTES", 32 * 1024 * 1024); // [bytes], all the bodies being read
+
+		// access log
+		setDefault(config, "ACCESS_LOG_BUFFER_SIZE", 1024);
+		setDefault(config, "ACCESS_LOG_SAMPLE_RATE", 1); // log 1 request out of n
+		setDefault(config, "ACCESS_LOG_FLUSH_INTERVAL", 100); // [milliseconds]
+
+		// response cache
+		setDefault(config, "HTTP_CACHE_MAX_BYTES", 4 * 1024 * 1024); // [bytes]
+		setDefault(config, "HTTP_CACHE_POLICY", "tinylfu"); // lru, tinylfu or cost
+		setDefault(config, "HTTP_CACHE_COST_REFERENCE", 100); // [milliseconds]
+		setDefault(config, "HTTP_CACHE_COMPRESSION_THRESHOLD", 1024); // [bytes], 0: no compression
+		setDefault(config, "HTTP_CACHE_REFRESH_AHEAD", 80); // [% of the max-age], 0: no refresh ahead
+		setDefault(config, "HTTP_CACHE_STALE_WHILE_REVALIDATE", 10); // [seconds]
+		setDefault(config, "HTTP_CACHE_STALE_IF_ERROR", 60); // [seconds]
+		setDefault(config, "HTTP_CACHE_NEGATIVE_TTL", 5); // [seconds], 0: no negative caching
+		setDefault(config, "HTTP_CACHE_UNREACHABLE_TTL", 10); // [seconds]
+
+		// observations of the resources read often
+		setDefault(config, "HTTP_CACHE_MAX_OBSERVATIONS", 16); // 0: no observations
+		setDefault(config, "HTTP_CACHE_OBSERVE_THRESHOLD", 20);
+		setDefault(config, "HTTP_CACHE_OBSERVE_WINDOW", 60); // [seconds]
+
+		// second tier of the response cache
+		setDefault(config, "HTTP_CACHE_DISK_PATH", ""); // empty: no second tier
+		setDefault(config, "HTTP_CACHE_DISK_SIZE", 16 * 1024 * 1024); // [bytes]
+		setDefault(config, "HTTP_CACHE_DISK_MAX_ENTRY_SIZE", 256 * 1024); // [bytes]
+	}
+
+	private static void setDefault(NetworkConfig config, String key, int value) {
+		if (config.getString(key) == null) {
+			config.setInt(key, value);
+		}
+	}
+
+	private static void setDefault(NetworkConfig config, String key, String value) {
+		if (config.getString(key) == null) {
+			config.setString(key, value);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange;
+
+
+/**
+ * Deduplicates the identical GET requests forwarded at the same time. The
+ * requests made conditional by the client and the requests for a block are
+ * never coalesced. The etag the cache revalidates is not an option of the
+ * request, so the revalidations are coalesced with the misses: the cache
+ * answers the 2.03 response with the representation refreshed. The first
+ * request for a proxy-uri and accept value is the leader and is forwarded, the
+ * following ones wait for it and are answered with a copy of its response, so
+ * that the server receives a single request.
+ */
+public class RequestCoalescer {
+
+	// guarded by this
+	private final Map<Key, Flight> flights = new HashMap<Key, Flight>();
+
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	/**
+	 * Joins the exchange to the in-flight request with the same key, if any.
+	 * Otherwise the exchange becomes the leader of a new flight, unless its
+	 * request cannot be shared.
+	 *
+	 * @param exchange
+	 *            the exchange
+	 * @return true, if the exchange will be answered by the leader
+	 */
+	public boolean join(Exchange exchange) {
+		Key key = Key.fromRequest(exchange.getRequest());
+		if (key == null) {
+			return false;
+		}
+		synchronized (this) {
+			Flight flight = flights.get(key);
+			if (flight == null) {
+				flights.put(key, new Flight(exchange));
+				return false;
+			}
+			flight.followers.add(exchange);
+		}
+		coalescedCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Ends the flight led by the exchange.
+	 *
+	 * @param leader
+	 *            the exchange that has been forwarded
+	 * @return the exchanges waiting for the response of the leader
+	 */
+	public List<Exchange> complete(Exchange leader) {
+		Key key = Key.fromRequest(leader.getRequest());
+		if (key == null) {
+			return Collections.emptyList();
+		}
+		synchronized (this) {
+			Flight flight = flights.get(key);
+			if (flight == null || flight.leader != leader) {
+				return Collections.emptyList();
+			}
+			flights.remove(key);
+			return flight.followers;
+		}
+	}
+
+	/**
+	 * @return the number of requests answered without being forwarded
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * @return the number of requests currently forwarded by a leader
+	 */
+	public synchronized int getFlightCount() {
+		return flights.size();
+	}
+
+	private static final class Flight {
+		private final Exchange leader;
+		private final List<Exchange> followers = new LinkedList<Exchange>();
+
+		Flight(Exchange leader) {
+			this.leader = leader;
+		}
+	}
+
+	/**
+	 * The proxy-uri and the accept option of a request, like the key of the
+	 * cache.
+	 */
+	private static final class Key {
+		private final String proxyUri;
+		private final int accept;
+
+		private Key(String proxyUri, int accept) {
+			this.proxyUri = proxyUri;
+			this.accept = accept;
+		}
+
+		/**
+		 * @return the key, or null if the request must be forwarded on its own
+		 */
+		static Key fromRequest(Request request) {
+			// only the safe requests without side effects, and not the
+			// observations that last beyond the response
+			OptionSet options = request.getOptions();
+			if (request.getCode() != Code.GET || !options.hasProxyUri() || options.hasObserve()) {
+				return null;
+			}
+			// the answer to a request conditional for the client or to a
+			// block depends on more than the key
+			if (options.getETagCount() > 0 || options.getIfMatchCount() > 0 || options.hasIfNoneMatch()
+					|| options.hasBlock2()) {
+				return null;
+			}
+			Integer accept = request.getOptions().getAccept();
+			return new Key(options.getProxyUri(),
+					accept == null ? MediaTypeRegistry.UNDEFINED : accept.intValue());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return accept == other.accept && proxyUri.equals(other.proxyUri);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * proxyUri.hashCode() + accept;
+		}
+	}
+}
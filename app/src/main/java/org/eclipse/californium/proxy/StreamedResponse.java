@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Response;
+
+
+/**
+ * Response carrying only the first block of a resource, the following ones
+ * are fetched on demand through its {@link Block2Stream}. Such a response is
+ * incomplete, hence it must never be cached.
+ */
+public class StreamedResponse extends Response {
+
+	private final Block2Stream blockStream;
+
+	/**
+	 * Instantiates a new streamed response from the translated first block.
+	 *
+	 * @param firstBlock
+	 *            the first block, translated for the original request
+	 * @param blockStream
+	 *            the stream of the following blocks
+	 */
+	public StreamedResponse(Response firstBlock, Block2Stream blockStream) {
+		super(firstBlock.getCode());
+		setPayload(firstBlock.getPayload());
+		setTimestamp(firstBlock.getTimestamp());
+		setOptions(new OptionSet(firstBlock.getOptions()));
+		getOptions().removeBlock2();
+		this.blockStream = blockStream;
+	}
+
+	/**
+	 * @return the stream of the blocks following the payload
+	 */
+	public Block2Stream getBlockStream() {
+		return blockStream;
+	}
+}
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import org.eclipse.californium.core.coap.Response;
+
+
+/**
+ * The 5.04 (Gateway Timeout) response of the proxy when the server has not
+ * answered a request forwarded to it. It tells the cache that the server is
+ * unreachable, unlike a 5.04 response sent by the server itself.
+ */
+public class UpstreamTimeoutResponse extends Response {
+
+	/**
+	 * Instantiates a new 5.04 response.
+	 */
+	public UpstreamTimeoutResponse() {
+		super(CoapTranslator.STATUS_TIMEOUT);
+	}
+}
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy.resources;
+
+
+/**
+ * Admission and weight of the responses cached in memory. The eviction itself
+ * is done by the cache, the least recently used responses first, within the
+ * bound of the sum of the weights: a policy decides which responses enter the
+ * cache when it is full, and how much room each one takes.
+ */
+public interface CachePolicy {
+
+	/**
+	 * Records a request looked up in the cache, found or not.
+	 * 
+	 * @param keyHash
+	 *            the hash of the resource requested
+	 */
+	public void recordAccess(int keyHash);
+
+	/**
+	 * Decides whether a new response enters the cache.
+	 * 
+	 * @param keyHash
+	 *            the hash of the resource
+	 * @param fetchLatency
+	 *            the nanoseconds taken to get the response from the server,
+	 *            0 if unknown
+	 * @param full
+	 *            true, if the cache is almost full, so that the response would
+	 *            evict another one
+	 * @return true, if the response is cached
+	 */
+	public boolean admit(int keyHash, long fetchLatency, boolean full);
+
+	/**
+	 * Gets the weight of a response, counted in the bound of the cache. It must
+	 * always be the same for the same arguments.
+	 * 
+	 * @param size
+	 *            the size of the response in bytes
+	 * @param fetchLatency
+	 *            the nanoseconds taken to get the response from the server,
+	 *            0 if unknown
+	 * @return the weight, at least 1
+	 */
+	public int weigh(int size, long fetchLatency);
+}
@@ -32,6 +32,11 @@ public interface CacheResource {
 
 	public CacheStats getCacheStats();
 
+	/**
+	 * @return the counters of the refreshes and of the stale responses served
+	 */
+	public RefreshStats getRefreshStats();
+
 	/**
 	 * Gets cached response.
 	 * 
@@ -42,4 +47,18 @@ public interface CacheResource {
 	public Response getResponse(Request request);
 
 	public void invalidateRequest(Request request);
+
+	/**
+	 * Gets the response to send to the client. If the request has been made
+	 * conditional by the cache to revalidate a stale representation, a 2.03
+	 * response is replaced by the representation just refreshed. A server
+	 * error may be replaced by a stale representation.
+	 * 
+	 * @param request
+	 *            the request
+	 * @param response
+	 *            the response of the server
+	 * @return the response for the client
+	 */
+	public Response getRevalidatedResponse(Request request, Response response);
 }
@@ -0,0 +1,377 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy.resources;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.proxy.EncodedResponse;
+import org.eclipse.californium.proxy.ProxyNetworkConfig;
+
+
+/**
+ * A response stored in the cache. Only the code, the options and the payload
+ * are kept, encoded in a single array, and a new {@link Response} is decoded
+ * for every hit, so that a cached response is never shared nor modified. The
+ * max-age is kept apart, with the time the response was stored, to compute
+ * the remaining lifetime without decoding. The instances are immutable, a
+ * revalidation creates a new one sharing the same array.
+ * <p>
+ * The large printable payloads are kept compressed with deflate, with the
+ * checksums of both the gzip and the zlib formats, so that an http client
+ * accepting either content-coding gets the compressed bytes as they are.
+ * <p>
+ * The layout of the array is: the code (1 byte), the flags (1 byte), the
+ * number of options (2 bytes), for each option its number (2 bytes), the
+ * length of its value (2 bytes) and the value, then the payload up to the
+ * end. A compressed payload starts with its uncompressed length, its crc-32
+ * and its adler-32 (4 bytes each), followed by the raw deflate data.
+ */
+final class CachedResponse {
+
+	/**
+	 * The size in bytes from which the printable payloads are compressed, 0
+	 * disables the compression.
+	 */
+	private static final int COMPRESSION_THRESHOLD =
+			ProxyNetworkConfig.getStandard().getInt("HTTP_CACHE_COMPRESSION_THRESHOLD");
+
+	/** The flag of a compressed payload. */
+	private static final int DEFLATED = 1;
+
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+	private static final byte[] ZLIB_HEADER = { 0x78, (byte) 0x9c };
+
+	private final byte[] data;
+	private final long maxAge;
+	private final long timestamp;
+	private final long fetchLatency;
+
+	private CachedResponse(byte[] data, long maxAge, long timestamp, long fetchLatency) {
+		this.data = data;
+		this.maxAge = maxAge;
+		this.timestamp = timestamp;
+		this.fetchLatency = fetchLatency;
+	}
+
+	/**
+	 * Encodes a response.
+	 *
+	 * @param response
+	 *            the response
+	 * @param timestamp
+	 *            the {@link System#nanoTime()} at which the response is stored
+	 * @return the cached response
+	 */
+	static CachedResponse fromResponse(Response response, long timestamp) {
+		Long maxAgeOption = response.getOptions().getMaxAge();
+		long maxAge = maxAgeOption != null ? maxAgeOption.longValue() : OptionNumberRegistry.Defaults.MAX_AGE;
+
+		// the max-age is kept apart
+		List<Option> options = new LinkedList<Option>();
+		int size = 3;
+		for (Option option : response.getOptions().asSortedList()) {
+			if (option.getNumber() != OptionNumberRegistry.MAX_AGE) {
+				options.add(option);
+				size += 4 + option.getLength();
+			}
+		}
+		byte[] payload = response.getPayload();
+		int flags = 0;
+		if (payload != null && COMPRESSION_THRESHOLD > 0 && payload.length >= COMPRESSION_THRESHOLD
+				&& MediaTypeRegistry.isPrintable(response.getOptions().getContentFormat())) {
+			byte[] deflated = deflate(payload);
+			// not worth inflating for a small gain
+			if (deflated.length < payload.length * 9 / 10) {
+				payload = deflated;
+				flags |= DEFLATED;
+			}
+		}
+		size += 1 + (payload == null ? 0 : payload.length);
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.put((byte) response.getCode().value);
+		buffer.put((byte) flags);
+		buffer.putShort((short) options.size());
+		for (Option option : options) {
+			buffer.putShort((short) option.getNumber());
+			buffer.putShort((short) option.getLength());
+			buffer.put(option.getValue());
+		}
+		if (payload != null) {
+			buffer.put(payload);
+		}
+		return new CachedResponse(buffer.array(), maxAge, timestamp, 0);
+	}
+
+	/**
+	 * Creates a cached response from its encoded form.
+	 *
+	 * @param data
+	 *            the array returned by {@link #getData()}
+	 * @param maxAge
+	 *            the max-age in seconds
+	 * @param timestamp
+	 *            the {@link System#nanoTime()} from which the max-age counts
+	 * @return the cached response
+	 */
+	static CachedResponse fromData(byte[] data, long maxAge, long timestamp) {
+		return new CachedResponse(data, maxAge, timestamp, 0);
+	}
+
+	/**
+	 * Decodes the response, with the max-age set to the remaining lifetime.
+	 *
+	 * @param currentTime
+	 *            the current {@link System#nanoTime()}
+	 * @return a new response
+	 */
+	Response toResponse(long currentTime) {
+		return toResponse(currentTime, null);
+	}
+
+	/**
+	 * Decodes the response, with the max-age set to the remaining lifetime.
+	 * A compressed payload is not inflated if the client accepts a
+	 * content-coding, the response is then an {@link EncodedResponse}.
+	 *
+	 * @param currentTime
+	 *            the current {@link System#nanoTime()}
+	 * @param contentCoding
+	 *            the content-coding accepted by the client, null if none
+	 * @return a new response
+	 */
+	Response toResponse(long currentTime, String contentCoding) {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		ResponseCode code = ResponseCode.valueOf(buffer.get() & 0xFF);
+		boolean deflated = (buffer.get() & DEFLATED) != 0;
+		Response response = deflated && contentCoding != null ? new EncodedResponse(code, contentCoding)
+				: new Response(code);
+		int optionCount = buffer.getShort() & 0xFFFF;
+		for (int i = 0; i < optionCount; i++) {
+			Option option = new Option(buffer.getShort() & 0xFFFF);
+			byte[] value = new byte[buffer.getShort() & 0xFFFF];
+			buffer.get(value);
+			option.setValue(value);
+			response.getOptions().addOption(option);
+		}
+		if (!deflated) {
+			response.setPayload(Arrays.copyOfRange(data, buffer.position(), data.length));
+		} else if (contentCoding != null) {
+			response.setPayload(encode(buffer, contentCoding));
+		} else {
+			response.setPayload(inflate(buffer));
+		}
+		response.getOptions().setMaxAge(Math.max(0, getRemainingLifetime(currentTime)));
+		response.setTimestamp(currentTime);
+		return response;
+	}
+
+	/**
+	 * Creates the response revalidated, i.e., with the same content and a new
+	 * lifetime.
+	 *
+	 * @param maxAge
+	 *            the new max-age in seconds
+	 * @param timestamp
+	 *            the {@link System#nanoTime()} of the revalidation
+	 * @return the cached response
+	 */
+	CachedResponse refresh(long maxAge, long timestamp) {
+		return new CachedResponse(data, maxAge, timestamp, fetchLatency);
+	}
+
+	/**
+	 * Creates the response with the time it took to get it from the server.
+	 *
+	 * @param fetchLatency
+	 *            the latency in nanoseconds
+	 * @return the cached response
+	 */
+	CachedResponse withFetchLatency(long fetchLatency) {
+		return new CachedResponse(data, maxAge, timestamp, fetchLatency);
+	}
+
+	/**
+	 * Gets the etags of the response, without decoding the payload.
+	 *
+	 * @return the etags
+	 */
+	List<byte[]> getETags() {
+		List<byte[]> etags = new LinkedList<byte[]>();
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		// the code and the flags
+		buffer.getShort();
+		int optionCount = buffer.getShort() & 0xFFFF;
+		for (int i = 0; i < optionCount; i++) {
+			int number = buffer.getShort() & 0xFFFF;
+			int length = buffer.getShort() & 0xFFFF;
+			if (number == OptionNumberRegistry.ETAG) {
+				etags.add(Arrays.copyOfRange(data, buffer.position(), buffer.position() + length));
+			} else if (number > OptionNumberRegistry.ETAG) {
+				// the options are sorted
+				break;
+			}
+			buffer.position(buffer.position() + length);
+		}
+		return etags;
+	}
+
+	/**
+	 * Gets the seconds left before the response is stale, negative if it is
+	 * already stale.
+	 *
+	 * @param currentTime
+	 *            the current {@link System#nanoTime()}
+	 * @return the remaining lifetime in seconds
+	 */
+	long getRemainingLifetime(long currentTime) {
+		// calculate the time that the response has spent in the cache
+		long secondsInCache = Math.round((currentTime - timestamp) / (double) TimeUnit.SECONDS.toNanos(1));
+		return maxAge - secondsInCache;
+	}
+
+	/**
+	 * @return the max-age in seconds, counted from the time the response was
+	 *         stored or revalidated
+	 */
+	long getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * @return the nanoseconds it took to get the response from the server, 0
+	 *         if unknown
+	 */
+	long getFetchLatency() {
+		return fetchLatency;
+	}
+
+	/**
+	 * Compresses a payload.
+	 *
+	 * @return the uncompressed length, the crc-32, the adler-32 and the raw
+	 *         deflate data
+	 */
+	private static byte[] deflate(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		Adler32 adler = new Adler32();
+		adler.update(payload);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + 12);
+		ByteBuffer checksums = ByteBuffer.allocate(12);
+		checksums.putInt(payload.length).putInt((int) crc.getValue()).putInt((int) adler.getValue());
+		out.write(checksums.array(), 0, 12);
+
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(payload);
+			deflater.finish();
+			byte[] chunk = new byte[1024];
+			while (!deflater.finished()) {
+				int length = deflater.deflate(chunk);
+				out.write(chunk, 0, length);
+			}
+		} finally {
+			deflater.end();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decompresses the payload at the position of the buffer.
+	 */
+	private static byte[] inflate(ByteBuffer buffer) {
+		byte[] payload = new byte[buffer.getInt()];
+		// the checksums
+		buffer.getLong();
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(buffer.array(), buffer.position(), buffer.remaining());
+			int length = 0;
+			while (length < payload.length && !inflater.finished()) {
+				int inflated = inflater.inflate(payload, length, payload.length - length);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += inflated;
+			}
+			if (length != payload.length) {
+				throw new IllegalStateException("Truncated cached payload");
+			}
+		} catch (DataFormatException e) {
+			// compressed by deflate()
+			throw new IllegalStateException("Corrupted cached payload", e);
+		} finally {
+			inflater.end();
+		}
+		return payload;
+	}
+
+	/**
+	 * Frames the raw deflate data at the position of the buffer in the format
+	 * of a content-coding.
+	 */
+	private static byte[] encode(ByteBuffer buffer, String contentCoding) {
+		int length = buffer.getInt();
+		int crc = buffer.getInt();
+		int adler = buffer.getInt();
+		int deflatedLength = buffer.remaining();
+		ByteBuffer encoded;
+		if (EncodedResponse.GZIP.equals(contentCoding)) {
+			encoded = ByteBuffer.allocate(GZIP_HEADER.length + deflatedLength + 8);
+			encoded.put(GZIP_HEADER).put(buffer);
+			// the trailer is little-endian
+			encoded.order(ByteOrder.LITTLE_ENDIAN).putInt(crc).putInt(length);
+		} else {
+			encoded = ByteBuffer.allocate(ZLIB_HEADER.length + deflatedLength + 4);
+			encoded.put(ZLIB_HEADER).put(buffer).putInt(adler);
+		}
+		return encoded.array();
+	}
+
+	/**
+	 * @return the encoded response, not to be modified
+	 */
+	byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return the size of the encoded response in bytes
+	 */
+	int getSize() {
+		return data.length;
+	}
+}
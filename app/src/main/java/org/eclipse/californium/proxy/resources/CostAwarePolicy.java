@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy.resources;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.proxy.LatencyHistogram;
+import org.eclipse.californium.proxy.LatencyStats;
+import org.eclipse.californium.proxy.ProxyNetworkConfig;
+
+
+/**
+ * The {@link TinyLfuPolicy} taking into account the time to get the
+ * responses from the servers. A response slower to get than 90% of the
+ * upstream requests is admitted even if it was requested only once, and the
+ * responses take less room the slower they are to get, down to an eighth of
+ * their size, so that they stay longer in the cache.
+ */
+public class CostAwarePolicy extends TinyLfuPolicy {
+
+	/**
+	 * The latency in milliseconds up to which a response weighs its size.
+	 */
+	private static final int REFERENCE_LATENCY =
+			ProxyNetworkConfig.getStandard().getInt("HTTP_CACHE_COST_REFERENCE");
+
+	private static final int MAX_COST = 8;
+
+	/** The interval between two reads of the upstream latencies. */
+	private static final long THRESHOLD_UPDATE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private final long referenceLatency = TimeUnit.MILLISECONDS.toNanos(Math.max(1, REFERENCE_LATENCY));
+
+	private volatile long slowThreshold = Long.MAX_VALUE;
+	private volatile long thresholdUpdate = System.nanoTime() - THRESHOLD_UPDATE_INTERVAL;
+
+	/**
+	 * @param expectedEntries
+	 *            the number of responses the cache is expected to hold
+	 */
+	public CostAwarePolicy(int expectedEntries) {
+		super(expectedEntries);
+	}
+
+	@Override
+	public boolean admit(int keyHash, long fetchLatency, boolean full) {
+		return super.admit(keyHash, fetchLatency, full) || (fetchLatency > 0 && fetchLatency >= getSlowThreshold());
+	}
+
+	@Override
+	public int weigh(int size, long fetchLatency) {
+		long cost = Math.min(MAX_COST, Math.max(1, fetchLatency / referenceLatency));
+		return (int) Math.max(1, size / cost);
+	}
+
+	/**
+	 * @return the 90th percentile of the upstream latencies in nanoseconds,
+	 *         read at most once per second
+	 */
+	private long getSlowThreshold() {
+		long currentTime = System.nanoTime();
+		if (currentTime - thresholdUpdate >= THRESHOLD_UPDATE_INTERVAL) {
+			thresholdUpdate = currentTime;
+			LatencyHistogram upstream = LatencyStats.getStandard().getHistogram(LatencyStats.Stage.UPSTREAM);
+			slowThreshold = upstream.getCount() == 0 ? Long.MAX_VALUE
+					: TimeUnit.MICROSECONDS.toNanos(upstream.getPercentile(0.9));
+		}
+		return slowThreshold;
+	}
+}
@@ -0,0 +1,352 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+
+/**
+ * Second tier of the response cache, stored in a memory-mapped file that
+ * survives the restarts of the process. The file is a log: every store and
+ * every removal appends a record, and an index in memory gives the offset of
+ * the last record of each key. When the file is full, the records still
+ * valid are copied to a new file, which replaces the old one.
+ * <p>
+ * The expiration of a record is a wall-clock time, so that the remaining
+ * max-age of the responses is known after a restart. The layout of a record
+ * is: its length (4 bytes, written last, 0 marks the end of the log), the
+ * length of the key (2 bytes), the key, the expiration time in milliseconds
+ * (8 bytes, -1 for a removal) and the encoded response up to the end of the
+ * record.
+ */
+final class DiskCache {
+
+	private static final Logger LOGGER = Logger.getLogger(DiskCache.class.getCanonicalName());
+
+	private static final int MAGIC = 0x43664333; // "CfC3"
+	private static final int HEADER_SIZE = 4;
+	private static final long REMOVED = -1;
+
+	private final File file;
+	private final int capacity;
+	private final int maxEntrySize;
+
+	// guarded by this
+	private final Map<ByteBuffer, Integer> index = new HashMap<ByteBuffer, Integer>();
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int position;
+	private int garbage;
+
+	/**
+	 * Opens the file of the cache, creating it if necessary, and indexes the
+	 * records it contains.
+	 *
+	 * @param file
+	 *            the file
+	 * @param capacity
+	 *            the size of the file in bytes
+	 * @param maxEntrySize
+	 *            the size of the largest record stored
+	 * @throws IOException
+	 *             if the file cannot be mapped
+	 */
+	DiskCache(File file, int capacity, int maxEntrySize) throws IOException {
+		this.file = file;
+		this.capacity = capacity;
+		this.maxEntrySize = maxEntrySize;
+		map(file);
+		if (buffer.getInt(0) != MAGIC) {
+			// new or unknown file
+			clear();
+		} else {
+			load();
+		}
+	}
+
+	/**
+	 * Stores a response, replacing the previous one with the same key.
+	 *
+	 * @param key
+	 *            the encoded key
+	 * @param response
+	 *            the response
+	 * @param expiration
+	 *            the wall-clock time at which the response becomes stale
+	 */
+	synchronized void put(byte[] key, CachedResponse response, long expiration) {
+		byte[] data = response.getData();
+		int length = 2 + key.length + 8 + data.length;
+		if (length + 4 > maxEntrySize) {
+			LOGGER.finer("Response too large for the disk cache");
+			return;
+		}
+		if (!reserve(length)) {
+			return;
+		}
+		int offset = append(key, expiration, data);
+		Integer previous = index.put(ByteBuffer.wrap(key), offset);
+		if (previous != null) {
+			garbage += recordSize(previous);
+		}
+	}
+
+	/**
+	 * Gets a response not yet expired.
+	 *
+	 * @param key
+	 *            the encoded key
+	 * @param currentTime
+	 *            the current {@link System#nanoTime()}, the timestamp of the
+	 *            response returned
+	 * @return the response, or null if it is not stored or it is stale
+	 */
+	synchronized CachedResponse get(byte[] key, long currentTime) {
+		Integer offset = index.get(ByteBuffer.wrap(key));
+		if (offset == null) {
+			return null;
+		}
+		long remaining = buffer.getLong(offset + 4 + 2 + key.length) - System.currentTimeMillis();
+		if (remaining <= 0) {
+			// the record is left to the next compaction
+			index.remove(ByteBuffer.wrap(key));
+			garbage += recordSize(offset);
+			return null;
+		}
+		int dataOffset = offset + 4 + 2 + key.length + 8;
+		byte[] data = new byte[offset + 4 + buffer.getInt(offset) - dataOffset];
+		ByteBuffer record = buffer.duplicate();
+		record.position(dataOffset);
+		record.get(data);
+		return CachedResponse.fromData(data, remaining / 1000, currentTime);
+	}
+
+	/**
+	 * Removes a response.
+	 *
+	 * @param key
+	 *            the encoded key
+	 */
+	synchronized void remove(byte[] key) {
+		Integer previous = index.remove(ByteBuffer.wrap(key));
+		if (previous == null) {
+			return;
+		}
+		garbage += recordSize(previous);
+		int length = 2 + key.length + 8;
+		if (reserve(length)) {
+			// the removal must survive a restart
+			garbage += 4 + length;
+			append(key, REMOVED, new byte[0]);
+		}
+	}
+
+	/**
+	 * @return the keys of the responses stored, in no particular order
+	 */
+	synchronized List<byte[]> getKeys() {
+		List<byte[]> keys = new ArrayList<byte[]>(index.size());
+		for (ByteBuffer key : index.keySet()) {
+			keys.add(key.array());
+		}
+		return keys;
+	}
+
+	/**
+	 * Removes all the responses.
+	 */
+	synchronized void clear() {
+		index.clear();
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(HEADER_SIZE, 0);
+		position = HEADER_SIZE;
+		garbage = 0;
+	}
+
+	/**
+	 * Flushes the file and releases it.
+	 */
+	synchronized void close() {
+		buffer.force();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOGGER.warning("Cannot close the disk cache: " + e.getMessage());
+		}
+	}
+
+	private void map(File target) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(target, "rw");
+		try {
+			raf.setLength(capacity);
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			channel = raf.getChannel();
+			buffer = mapped;
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the log.
+	 */
+	private void load() {
+		int offset = HEADER_SIZE;
+		int length;
+		while (offset + 4 <= capacity && (length = buffer.getInt(offset)) > 0) {
+			if (offset + 4 + length > capacity) {
+				// truncated by a crash
+				break;
+			}
+			byte[] key = new byte[buffer.getShort(offset + 4) & 0xFFFF];
+			ByteBuffer record = buffer.duplicate();
+			record.position(offset + 4 + 2);
+			record.get(key);
+			Integer previous;
+			if (record.getLong() == REMOVED) {
+				previous = index.remove(ByteBuffer.wrap(key));
+				garbage += 4 + length;
+			} else {
+				previous = index.put(ByteBuffer.wrap(key), offset);
+			}
+			if (previous != null) {
+				garbage += recordSize(previous);
+			}
+			offset += 4 + length;
+		}
+		position = offset;
+		LOGGER.info("Disk cache loaded with " + index.size() + " responses");
+	}
+
+	/**
+	 * Makes room for a record, compacting the file if needed. The expired
+	 * records are only dropped by a compaction, so a full file is compacted
+	 * when it contains any.
+	 *
+	 * @return true, if the record fits
+	 */
+	private boolean reserve(int length) {
+		// keep room for the end marker
+		if (position + 4 + length + 4 <= capacity) {
+			return true;
+		}
+		if (garbage > 0 || hasExpired()) {
+			compact();
+			if (position + 4 + length + 4 <= capacity) {
+				return true;
+			}
+		}
+		LOGGER.fine("Disk cache full");
+		return false;
+	}
+
+	/**
+	 * @return true, if a record of the index is expired
+	 */
+	private boolean hasExpired() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<ByteBuffer, Integer> entry : index.entrySet()) {
+			int keyLength = entry.getKey().capacity();
+			if (buffer.getLong(entry.getValue() + 4 + 2 + keyLength) <= now) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int append(byte[] key, long expiration, byte[] data) {
+		int offset = position;
+		int length = 2 + key.length + 8 + data.length;
+		ByteBuffer record = buffer.duplicate();
+		record.position(offset + 4);
+		record.putShort((short) key.length);
+		record.put(key);
+		record.putLong(expiration);
+		record.put(data);
+		record.putInt(0);
+		// the length is written last, so that a partial record is never read
+		buffer.putInt(offset, length);
+		position = offset + 4 + length;
+		return offset;
+	}
+
+	private int recordSize(int offset) {
+		return 4 + buffer.getInt(offset);
+	}
+
+	/**
+	 * Copies the records not expired to a new file, which replaces the
+	 * current one.
+	 */
+	private void compact() {
+		File compacted = new File(file.getPath() + ".tmp");
+		FileChannel oldChannel = channel;
+		MappedByteBuffer oldBuffer = buffer;
+		Map<ByteBuffer, Integer> oldIndex = new HashMap<ByteBuffer, Integer>(index);
+		// a leftover of an interrupted compaction
+		compacted.delete();
+		try {
+			map(compacted);
+		} catch (IOException e) {
+			LOGGER.warning("Cannot compact the disk cache: " + e.getMessage());
+			return;
+		}
+		index.clear();
+		buffer.putInt(0, MAGIC);
+		position = HEADER_SIZE;
+		garbage = 0;
+		long now = System.currentTimeMillis();
+		for (Map.Entry<ByteBuffer, Integer> entry : oldIndex.entrySet()) {
+			int offset = entry.getValue();
+			int length = oldBuffer.getInt(offset);
+			int keyLength = entry.getKey().capacity();
+			if (oldBuffer.getLong(offset + 4 + 2 + keyLength) > now) {
+				ByteBuffer record = oldBuffer.duplicate();
+				record.position(offset);
+				record.limit(offset + 4 + length);
+				ByteBuffer target = buffer.duplicate();
+				target.position(position);
+				target.put(record);
+				index.put(entry.getKey(), position);
+				position += 4 + length;
+			}
+		}
+		buffer.putInt(position, 0);
+		buffer.force();
+		try {
+			oldChannel.close();
+		} catch (IOException e) {
+			LOGGER.warning("Cannot close the disk cache: " + e.getMessage());
+		}
+		if (!compacted.renameTo(file)) {
+			LOGGER.warning("Cannot replace " + file + " by the compacted disk cache");
+		}
+		LOGGER.fine("Disk cache compacted, " + index.size() + " responses kept");
+	}
+}
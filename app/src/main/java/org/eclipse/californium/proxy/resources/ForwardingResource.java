@@ -17,14 +17,36 @@
  ******************************************************************************/
 package org.eclipse.californium.proxy.resources;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
 import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.proxy.CoapTranslator;
+import org.eclipse.californium.proxy.RequestCoalescer;
+import org.eclipse.californium.proxy.StreamedResponse;
 
 
 public abstract class ForwardingResource extends CoapResource {
 
+	/**
+	 * The key in the user context of the requests answered through the cache
+	 * of this resource.
+	 */
+	private static final String CACHED_KEY = "proxy.forward.cached";
+
+	/**
+	 * The identical requests forwarded at the same time share the exchange
+	 * with the server.
+	 */
+	private final RequestCoalescer coalescer = new RequestCoalescer();
+
+	private volatile CacheResource cacheResource;
+
 	public ForwardingResource(String resourceIdentifier) {
 		super(resourceIdentifier);
 	}
@@ -35,9 +57,133 @@ public abstract class ForwardingResource extends CoapResource {
 
 	@Override
 	public void handleRequest(Exchange exchange) {
+		Request request = exchange.getRequest();
+		CacheResource cache = cacheResource;
+		// a request already looked up in the cache, by the http proxy or by a
+		// refresh, is cached by the one that looked it up
+		if (cache != null && request.getOptions().hasProxyUri() && !RequestFingerprint.isComputed(request)) {
+			Response response = cache.getResponse(request);
+			if (response != null) {
+				LOGGER.finer("Request answered from the cache: " + request);
+				exchange.sendResponse(cache.getRevalidatedResponse(request, response));
+				return;
+			}
+			markCached(request);
+		}
+
 		exchange.sendAccept();
+		// wait for the identical request already forwarded, if any
+		if (coalescer.join(exchange)) {
+			LOGGER.finer("Request coalesced with an in-flight one: " + exchange.getRequest());
+			return;
+		}
+		forwardOrFail(exchange);
+	}
+
+	/**
+	 * Forwards the request of the exchange, answering it with 5.00 if the
+	 * forwarding fails unexpectedly, so that its flight is always completed
+	 * and the requests coalesced with it are answered.
+	 * 
+	 * @param exchange
+	 *            the exchange
+	 */
+	private void forwardOrFail(Exchange exchange) {
+		try {
+			forward(exchange);
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Failed to forward " + exchange.getRequest(), e);
+			respond(exchange, new Response(ResponseCode.INTERNAL_SERVER_ERROR));
+		}
+	}
+
+	/**
+	 * Forwards the request of the exchange and answers it with
+	 * {@link #respond(Exchange, Response)}.
+	 * 
+	 * @param exchange
+	 *            the exchange
+	 */
+	protected void forward(Exchange exchange) {
 		Response response = forwardRequest(exchange.getRequest());
+		respond(exchange, response);
+	}
+
+	/**
+	 * Sends the response to the exchange and a copy of it to the exchanges
+	 * coalesced with it. A streamed response cannot be shared, so in that
+	 * case the waiting requests are forwarded on their own. The response is
+	 * cached first if the request was looked up in the cache of this
+	 * resource.
+	 * 
+	 * @param exchange
+	 *            the exchange
+	 * @param response
+	 *            the response
+	 */
+	protected void respond(Exchange exchange, Response response) {
+		Request request = exchange.getRequest();
+		CacheResource cache = cacheResource;
+		if (cache != null && isCached(request)) {
+			// a streamed response carries only the first block
+			if (!(response instanceof StreamedResponse)) {
+				request.setResponse(response);
+				cache.cacheResponse(request, response);
+			}
+			response = cache.getRevalidatedResponse(request, response);
+		}
+
 		exchange.sendResponse(response);
+		for (Exchange follower : coalescer.complete(exchange)) {
+			if (response instanceof StreamedResponse) {
+				forwardOrFail(follower);
+			} else if (cache != null && isCached(follower.getRequest())) {
+				follower.sendResponse(cache.getRevalidatedResponse(follower.getRequest(),
+						CoapTranslator.getResponse(response)));
+			} else {
+				follower.sendResponse(CoapTranslator.getResponse(response));
+			}
+		}
+	}
+
+	/**
+	 * @return the coalescer of the requests of this resource
+	 */
+	public RequestCoalescer getCoalescer() {
+		return coalescer;
+	}
+
+	/**
+	 * @return the cache of the responses forwarded, null if none
+	 */
+	public CacheResource getCacheResource() {
+		return cacheResource;
+	}
+
+	/**
+	 * Sets the cache answering the requests before they are forwarded and
+	 * storing the responses of the servers. The same cache can be shared by
+	 * several resources, the responses are cached by proxy-uri.
+	 * 
+	 * @param cacheResource
+	 *            the cache, or null to forward every request
+	 */
+	public void setCacheResource(CacheResource cacheResource) {
+		this.cacheResource = cacheResource;
+	}
+
+	private static void markCached(Request request) {
+		Map<String, String> context = new HashMap<String, String>();
+		if (request.getUserContext() != null) {
+			context.putAll(request.getUserContext());
+		}
+		context.put(CACHED_KEY, Boolean.TRUE.toString());
+		request.setUserContext(context);
+	}
+
+	private static boolean isCached(Request request) {
+		Map<String, String> context = request.getUserContext();
+		return context != null && context.containsKey(CACHED_KEY);
 	}
 
 	public abstract Response forwardRequest(Request request);
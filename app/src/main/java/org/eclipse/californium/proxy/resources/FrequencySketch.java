@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy.resources;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Estimates the number of recent occurrences of items with a count-min
+ * sketch of 4-bit counters. Each item has four counters, in four different
+ * longs of the table, and its frequency is the smallest of them. When the
+ * number of occurrences recorded reaches ten times the size of the table,
+ * all the counters are halved, so that the old occurrences fade out. The
+ * counters are updated without locking.
+ */
+final class FrequencySketch {
+
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+			0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private final AtomicLongArray table;
+	private final int mask;
+	private final int sampleSize;
+	private final AtomicInteger additions = new AtomicInteger();
+
+	/**
+	 * @param expectedItems
+	 *            the number of items to tell apart
+	 */
+	FrequencySketch(int expectedItems) {
+		int length = Integer.highestOneBit(Math.max(16, expectedItems - 1)) << 1;
+		this.table = new AtomicLongArray(length);
+		this.mask = length - 1;
+		this.sampleSize = 10 * length;
+	}
+
+	/**
+	 * @param hash
+	 *            the hash of the item
+	 * @return the estimated number of recent occurrences, up to 15
+	 */
+	int frequency(int hash) {
+		int item = spread(hash);
+		int start = (item & 3) << 2;
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			int offset = (start + i) << 2;
+			int count = (int) ((table.get(indexOf(item, i)) >>> offset) & 0xFL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Records an occurrence.
+	 * 
+	 * @param hash
+	 *            the hash of the item
+	 */
+	void increment(int hash) {
+		int item = spread(hash);
+		int start = (item & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(item, i), (start + i) << 2);
+		}
+		if (added && additions.incrementAndGet() == sampleSize) {
+			reset();
+		}
+	}
+
+	private boolean incrementAt(int index, int offset) {
+		long mask = 0xFL << offset;
+		long value;
+		do {
+			value = table.get(index);
+			if ((value & mask) == mask) {
+				// saturated
+				return false;
+			}
+		} while (!table.compareAndSet(index, value, value + (1L << offset)));
+		return true;
+	}
+
+	/**
+	 * Halves all the counters.
+	 */
+	private void reset() {
+		for (int i = 0; i < table.length(); i++) {
+			long value;
+			do {
+				value = table.get(i);
+			} while (!table.compareAndSet(i, value, (value >>> 1) & RESET_MASK));
+		}
+		additions.addAndGet(-sampleSize / 2);
+	}
+
+	private int indexOf(int item, int i) {
+		long hash = (item + SEEDS[i]) * SEEDS[i];
+		hash += hash >>> 32;
+		return ((int) hash) & mask;
+	}
+
+	private static int spread(int hash) {
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		return (hash >>> 16) ^ hash;
+	}
+}
@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy.resources;
+
+
+/**
+ * The policy admitting every response, with its size as weight: the cache
+ * keeps the most recently used responses.
+ */
+public class LruPolicy implements CachePolicy {
+
+	public void recordAccess(int keyHash) {
+	}
+
+	public boolean admit(int keyHash, long fetchLatency, boolean full) {
+		return true;
+	}
+
+	public int weigh(int size, long fetchLatency) {
+		return Math.max(1, size);
+	}
+}
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy.resources;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.proxy.HashedWheelTimer;
+import org.eclipse.californium.proxy.ProxyNetworkConfig;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+
+/**
+ * The coap resources observed to feed the cache. A resource read at least
+ * OBSERVE_THRESHOLD times during OBSERVE_WINDOW seconds is observed through
+ * the {@link ProxyCoapClientResource}, and every notification replaces its
+ * cached response, so that the reads are answered without contacting the
+ * server. An observation is canceled when its resource has not been read for
+ * a whole window, and at most MAX_OBSERVATIONS resources are observed at a
+ * time.
+ */
+final class ObservedResources {
+
+	private static final Logger LOGGER = Logger.getLogger(ObservedResources.class.getCanonicalName());
+
+	/**
+	 * The maximum number of resources observed at a time, 0 disables the
+	 * observations.
+	 */
+	private static final int MAX_OBSERVATIONS =
+			ProxyNetworkConfig.getStandard().getInt("HTTP_CACHE_MAX_OBSERVATIONS");
+
+	/**
+	 * The number of reads in a window after which a resource is observed.
+	 */
+	private static final int OBSERVE_THRESHOLD =
+			ProxyNetworkConfig.getStandard().getInt("HTTP_CACHE_OBSERVE_THRESHOLD");
+
+	/**
+	 * The window in which the reads are counted, in seconds.
+	 */
+	private static final int OBSERVE_WINDOW =
+			ProxyNetworkConfig.getStandard().getInt("HTTP_CACHE_OBSERVE_WINDOW");
+
+	/**
+	 * The maximum number of resources whose reads are counted in a window.
+	 */
+	private static final int MAX_COUNTED_RESOURCES = 4096;
+
+	private final ProxyCacheResource cacheResource;
+	private final HashedWheelTimer timer;
+
+	/** The reads of the current window, by canonical proxy-uri. */
+	private final ConcurrentHashMap<String, AtomicInteger> reads = new ConcurrentHashMap<String, AtomicInteger>();
+	/** The observations, by canonical proxy-uri. */
+	private final ConcurrentHashMap<String, Observation> observations = new ConcurrentHashMap<String, Observation>();
+	/** The slots of observations taken. */
+	private final AtomicInteger observationCount = new AtomicInteger();
+	/** The resources found not observable, not tried again for a while. */
+	private final Cache<String, Boolean> notObservable = CacheBuilder.newBuilder().maximumSize(1024)
+			.expireAfterWrite(10 * OBSERVE_WINDOW, TimeUnit.SECONDS).build();
+
+	private volatile ProxyCoapClientResource client;
+
+	/**
+	 * @param cacheResource
+	 *            the cache fed by the notifications
+	 * @param timer
+	 *            the timer of the maintenance of the cache
+	 */
+	ObservedResources(ProxyCacheResource cacheResource, HashedWheelTimer timer) {
+		this.cacheResource = cacheResource;
+		this.timer = timer;
+		if (MAX_OBSERVATIONS > 0) {
+			scheduleSweep();
+		}
+	}
+
+	/**
+	 * @param client
+	 *            the resource observing the coap servers, or null to disable
+	 *            the observations
+	 */
+	void setClient(ProxyCoapClientResource client) {
+		this.client = client;
+		if (client == null) {
+			cancelAll();
+		}
+	}
+
+	/**
+	 * @param uri
+	 *            the canonical proxy-uri
+	 * @return true, if the resource is observed
+	 */
+	boolean isObserved(String uri) {
+		return observations.containsKey(uri);
+	}
+
+	/**
+	 * Counts a read of the resource of the request, and observes the resource
+	 * if it is read often enough.
+	 *
+	 * @param request
+	 *            the request received by the proxy
+	 */
+	void recordRead(Request request) {
+		ProxyCoapClientResource observer = client;
+		if (observer == null || MAX_OBSERVATIONS == 0 || request.getCode() != Code.GET) {
+			return;
+		}
+		String uri = RequestFingerprint.getUri(request);
+		Observation observation = observations.get(uri);
+		if (observation != null) {
+			observation.read = true;
+			return;
+		}
+		if (!uri.startsWith("coap")) {
+			return;
+		}
+
+		AtomicInteger count = reads.get(uri);
+		if (count == null) {
+			if (reads.size() >= MAX_COUNTED_RESOURCES) {
+				return;
+			}
+			AtomicInteger created = new AtomicInteger();
+			count = reads.putIfAbsent(uri, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		if (count.incrementAndGet() == OBSERVE_THRESHOLD && notObservable.getIfPresent(uri) == null) {
+			observe(observer, uri, request);
+		}
+	}
+
+	/**
+	 * Cancels all the observations.
+	 */
+	void cancelAll() {
+		for (Observation observation : observations.values()) {
+			cancel(observation);
+		}
+	}
+
+	private void observe(ProxyCoapClientResource observer, String uri, Request request) {
+		if (observationCount.incrementAndGet() > MAX_OBSERVATIONS) {
+			observationCount.decrementAndGet();
+			LOGGER.finer("Too many observations");
+			return;
+		}
+
+		// the request is forwarded as if it was sent by the cache
+		Request observeRequest = new Request(Code.GET, request.getType());
+		observeRequest.setOptions(new OptionSet(request.getOptions()));
+		observeRequest.getOptions().clearETags();
+		Observation observation = new Observation(uri, observeRequest);
+		if (observations.putIfAbsent(uri, observation) != null) {
+			observationCount.decrementAndGet();
+			return;
+		}
+
+		Request outgoingRequest = observer.observe(observeRequest, observation);
+		if (outgoingRequest == null) {
+			end(observation);
+			return;
+		}
+		observation.outgoingRequest = outgoingRequest;
+		LOGGER.fine("Observing " + uri);
+	}
+
+	/**
+	 * Releases the slot of an observation.
+	 */
+	private boolean end(Observation observation) {
+		if (observations.remove(observation.uri, observation)) {
+			observationCount.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	private void cancel(Observation observation) {
+		if (end(observation)) {
+			Request outgoingRequest = observation.outgoingRequest;
+			if (outgoingRequest != null) {
+				// the next notification is rejected, which ends the
+				// observation on the server
+				outgoingRequest.cancel();
+			}
+			LOGGER.fine("Observation of " + observation.uri + " canceled");
+		}
+	}
+
+	/**
+	 * Starts a new window: the reads are counted from zero, and the resources
+	 * not read during the last window are no longer observed.
+	 */
+	private void scheduleSweep() {
+		timer.newTimeout(new Runnable() {
+			public void run() {
+				reads.clear();
+				for (Observation observation : observations.values()) {
+					if (observation.read) {
+						observation.read = false;
+					} else {
+						cancel(observation);
+					}
+				}
+				scheduleSweep();
+			}
+		}, OBSERVE_WINDOW, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * The observation of a resource, caching its notifications.
+	 */
+	private final class Observation implements ProxyCoapClientResource.NotificationHandler {
+		private final String uri;
+		private final Request request;
+		private volatile Request outgoingRequest;
+		private volatile boolean read = true;
+
+		Observation(String uri, Request request) {
+			this.uri = uri;
+			this.request = request;
+		}
+
+		public void onNotification(Response response) {
+			if (observations.get(uri) != this) {
+				// canceled meanwhile
+				return;
+			}
+			// the observe option is of no use to the clients of the cache
+			response.getOptions().removeObserve();
+			// the key of the response depends on its content format
+			request.setResponse(response);
+			cacheResource.cacheResponse(request, response);
+		}
+
+		public void onEnd(ProxyCoapClientResource.EndReason reason) {
+			// an observation ended by the server can be started again
+			if (reason == ProxyCoapClientResource.EndReason.NOT_OBSERVABLE) {
+				notObservable.put(uri, Boolean.TRUE);
+			}
+			end(this);
+		}
+	}
+}
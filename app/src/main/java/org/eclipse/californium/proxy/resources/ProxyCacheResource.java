@@ -17,57 +17,254 @@
  ******************************************************************************/
 package org.eclipse.californium.proxy.resources;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URISyntaxException;
-import java.net.URLEncoder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.proxy.CoapTranslator;
+import org.eclipse.californium.proxy.EncodedResponse;
+import org.eclipse.californium.proxy.HashedWheelTimer;
+import org.eclipse.californium.proxy.ProxyNetworkConfig;
+import org.eclipse.californium.proxy.RequestHandler;
+import org.eclipse.californium.proxy.UpstreamTimeoutResponse;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
 import com.google.common.cache.CacheStats;
-import com.google.common.cache.LoadingCache;
-import com.google.common.primitives.Ints;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
 
 
 /**
  * Resource to handle the caching in the proxy.
  */
 public class ProxyCacheResource extends CoapResource implements CacheResource {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
 	
 	/**
-	 * The time after which an entry is removed. Since it is not possible to set
-	 * the expiration for the single instances, this constant represent the
-	 * upper bound for the cache. The real lifetime will be handled explicitly
-	 * with the max-age option.
+	 * The time a stale response with an etag is kept after its max-age, so
+	 * that it can be revalidated. The responses without etag are removed as
+	 * soon as their max-age is over.
 	 */
 	private static final int CACHE_RESPONSE_MAX_AGE = 
 			NetworkConfig.getStandard().getInt(NetworkConfig.Keys.HTTP_CACHE_RESPONSE_MAX_AGE);
 
 	/**
-	 * Maximum size for the cache.
+	 * Maximum size for the cache in bytes, counting the encoded responses
+	 * and their keys.
+	 */
+	private static final long CACHE_MAX_BYTES = 
+			ProxyNetworkConfig.getStandard().getInt("HTTP_CACHE_MAX_BYTES");
+
+	/**
+	 * The percentage of the max-age after which a response hit is refreshed in
+	 * the background, while still served from the cache. 0 disables the
+	 * refresh ahead.
+	 */
+	private static final int REFRESH_AHEAD =
+			ProxyNetworkConfig.getStandard().getInt("HTTP_CACHE_REFRESH_AHEAD");
+
+	/**
+	 * The seconds after its max-age during which a stale response is still
+	 * served while it is refreshed in the background.
+	 */
+	private static final int STALE_WHILE_REVALIDATE =
+			ProxyNetworkConfig.getStandard().getInt("HTTP_CACHE_STALE_WHILE_REVALIDATE");
+
+	/**
+	 * The seconds after its max-age during which a stale response is served
+	 * instead of a server error.
+	 */
+	private static final int STALE_IF_ERROR =
+			ProxyNetworkConfig.getStandard().getInt("HTTP_CACHE_STALE_IF_ERROR");
+
+	/**
+	 * The seconds a 4.04 or 5.xx response is cached, 0 disables the negative
+	 * caching. A shorter max-age of the response is honored.
+	 */
+	private static final int NEGATIVE_TTL =
+			ProxyNetworkConfig.getStandard().getInt("HTTP_CACHE_NEGATIVE_TTL");
+
+	/**
+	 * The seconds during which the requests to a server that did not answer
+	 * fail without being forwarded, 0 disables it.
+	 */
+	private static final int UNREACHABLE_TTL =
+			ProxyNetworkConfig.getStandard().getInt("HTTP_CACHE_UNREACHABLE_TTL");
+
+	/**
+	 * The time after which a refresh without response is abandoned, and
+	 * another one can start, in seconds.
+	 */
+	private static final int REFRESH_TIMEOUT = 30;
+
+	/**
+	 * The policy of admission and weight of the responses in memory: "lru"
+	 * admits all of them, "tinylfu" admits in a full cache only the resources
+	 * requested often, "cost" also admits the responses slow to get and
+	 * weighs them less, see {@link CachePolicy}.
+	 */
+	private static final String CACHE_POLICY =
+			ProxyNetworkConfig.getStandard().getString("HTTP_CACHE_POLICY");
+
+	/**
+	 * The key of the user context of a request missed by the cache, giving the
+	 * {@link System#nanoTime()} of the miss.
 	 */
-	private static final long CACHE_SIZE = 
-			NetworkConfig.getStandard().getInt(NetworkConfig.Keys.HTTP_CACHE_SIZE);
+	private static final String MISS_KEY = "proxy.cache.miss";
+
+	/**
+	 * The key in the user context of the tags of a request, separated by
+	 * commas.
+	 */
+	private static final String TAGS_KEY = "proxy.cache.tags";
+
+	/**
+	 * The key in the user context of the etag a request revalidates, in
+	 * ISO-8859-1. The etag is not an option of the request, which keeps the
+	 * conditions of the client only.
+	 */
+	private static final String VALIDATOR_KEY = "proxy.cache.validator";
+
+	/**
+	 * The interval between two runs of the maintenance of the cache in
+	 * milliseconds.
+	 */
+	private static final int CLEANUP_INTERVAL = 5000;
+
+	/**
+	 * The file of the second tier of the cache, none if empty.
+	 */
+	private static final String DISK_CACHE_PATH =
+			ProxyNetworkConfig.getStandard().getString("HTTP_CACHE_DISK_PATH");
+
+	/**
+	 * Size of the file of the second tier in bytes.
+	 */
+	private static final int DISK_CACHE_SIZE =
+			ProxyNetworkConfig.getStandard().getInt("HTTP_CACHE_DISK_SIZE");
+
+	/**
+	 * Size of the largest response stored in the second tier in bytes.
+	 */
+	private static final int DISK_CACHE_MAX_ENTRY_SIZE =
+			ProxyNetworkConfig.getStandard().getInt("HTTP_CACHE_DISK_MAX_ENTRY_SIZE");
 
 	/**
 	 * The cache. http://code.google.com/p/guava-libraries/wiki/CachesExplained
+	 * The responses are stored encoded, see {@link CachedResponse}.
+	 */
+	private final Cache<CacheKey, CachedResponse> responseCache;
+
+	/**
+	 * The second tier, written through and read when a response is not in
+	 * memory, null if disabled. It keeps the responses evicted from the first
+	 * tier and the ones cached before a restart.
 	 */
-	private final LoadingCache<CacheKey, Response> responseCache;
+	private final DiskCache diskCache;
 
-	private boolean enabled = false;
+	/**
+	 * The timer removing the responses when they expire, and running the
+	 * maintenance of the cache, so that the request threads do not.
+	 */
+	private final HashedWheelTimer maintenanceTimer = new HashedWheelTimer("ProxyCache maintenance", 1000, 512);
+
+	/**
+	 * The pending expiration of each response in memory.
+	 */
+	private final ConcurrentHashMap<CacheKey, HashedWheelTimer.Timeout> expirations = new ConcurrentHashMap<CacheKey, HashedWheelTimer.Timeout>();
+
+	/**
+	 * The resources read often enough to be observed, their notifications
+	 * keep the cache up to date.
+	 */
+	private final ObservedResources observedResources = new ObservedResources(this, maintenanceTimer);
+
+	/**
+	 * The keys of the cached representations of each proxy-uri, so that a
+	 * request without accept option finds them without probing every media
+	 * type. The arrays are replaced, never modified, hence they can be read
+	 * without lock; they are replaced while holding the lock of the index.
+	 */
+	private final ConcurrentHashMap<String, CacheKey[]> uriIndex = new ConcurrentHashMap<String, CacheKey[]>();
+
+	/**
+	 * The proxy-uris of the index, by prefix and by tag, guarded by the lock
+	 * of the index.
+	 */
+	private final UriTrie uriTrie = new UriTrie();
+
+	/**
+	 * The stale representations being revalidated, by the request whose
+	 * forwarded copy carries their etag. The representation is kept here even if it is
+	 * evicted meanwhile, so that a 2.03 response can always be answered.
+	 */
+	private final Cache<Request, Entry> revalidations = CacheBuilder.newBuilder().weakKeys()
+			.expireAfterWrite(CACHE_RESPONSE_MAX_AGE, TimeUnit.SECONDS).build();
+
+	/**
+	 * The last error response of each canonical proxy-uri read with GET.
+	 */
+	private final Cache<String, CachedResponse> negativeCache = CacheBuilder.newBuilder().maximumSize(1024)
+			.expireAfterWrite(Math.max(1, NEGATIVE_TTL), TimeUnit.SECONDS).build();
+
+	/**
+	 * The servers that recently did not answer, by origin.
+	 */
+	private final Cache<String, Boolean> unreachableServers = CacheBuilder.newBuilder().maximumSize(256)
+			.expireAfterWrite(Math.max(1, UNREACHABLE_TTL), TimeUnit.SECONDS).build();
+
+	/**
+	 * The responses being refreshed in the background, with the
+	 * {@link System#nanoTime()} at which the refresh started.
+	 */
+	private final ConcurrentHashMap<CacheKey, Long> refreshes = new ConcurrentHashMap<CacheKey, Long>();
+
+	/**
+	 * Forwards the requests refreshing the cache, none if not set.
+	 */
+	private volatile RequestHandler refreshHandler;
+
+	private final AtomicLong refreshAheadCount = new AtomicLong();
+	private final AtomicLong staleHitCount = new AtomicLong();
+	private final AtomicLong staleMissCount = new AtomicLong();
+	private final AtomicLong staleIfErrorHitCount = new AtomicLong();
+	private final AtomicLong staleIfErrorMissCount = new AtomicLong();
+
+	/**
+	 * The admission and the weight of the responses in memory.
+	 */
+	private final CachePolicy policy;
+
+	/**
+	 * The sum of the weights of the responses in memory, which the cache does
+	 * not tell.
+	 */
+	private final AtomicLong memoryWeight = new AtomicLong();
+
+	private volatile boolean enabled = false;
 
 	/**
 	 * Instantiates a new proxy cache resource.
@@ -80,30 +277,89 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 	 * Instantiates a new proxy cache resource.
 	 */
 	public ProxyCacheResource(boolean enabled) {
+		this(enabled, createPolicy());
+	}
+
+	/**
+	 * Instantiates a new proxy cache resource.
+	 * 
+	 * @param enabled
+	 *            true, if the responses are cached
+	 * @param policy
+	 *            the admission and the weight of the responses in memory
+	 */
+	public ProxyCacheResource(boolean enabled, CachePolicy policy) {
 		super("cache");
 		this.enabled = enabled;
+		this.policy = policy;
 
 		// builds a new cache that:
-		// - has a limited size of CACHE_SIZE entries
-		// - removes entries after CACHE_RESPONSE_MAX_AGE seconds from the last
-		// write
+		// - has a limited size of CACHE_MAX_BYTES, weighed by the policy
+		// - removes entries when their max-age is over, see scheduleExpiration
 		// - record statistics
-		responseCache = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).recordStats().expireAfterWrite(CACHE_RESPONSE_MAX_AGE, TimeUnit.SECONDS).build(new CacheLoader<CacheKey, Response>() {
-			@Override
-			public Response load(CacheKey request) throws NullPointerException {
-				// retreive the response from the incoming request, no
-				// exceptions are thrown
-				Response cachedResponse = request.getResponse();
-
-				// check for null and raise an exception that clients must
-				// handle
-				if (cachedResponse == null) {
-					throw new NullPointerException();
+		// - keeps the index of the proxy-uris up to date, the responses
+		// evicted are still indexed if the second tier has them
+		diskCache = openDiskCache();
+		responseCache = CacheBuilder.newBuilder().maximumWeight(CACHE_MAX_BYTES).weigher(new Weigher<CacheKey, CachedResponse>() {
+			public int weigh(CacheKey cacheKey, CachedResponse cachedResponse) {
+				return ProxyCacheResource.this.weigh(cacheKey, cachedResponse);
+			}
+		}).recordStats().removalListener(new RemovalListener<CacheKey, CachedResponse>() {
+			public void onRemoval(RemovalNotification<CacheKey, CachedResponse> notification) {
+				memoryWeight.addAndGet(-weigh(notification.getKey(), notification.getValue()));
+				RemovalCause cause = notification.getCause();
+				if (cause == RemovalCause.REPLACED) {
+					return;
+				}
+				if (cause != RemovalCause.SIZE || diskCache == null) {
+					unindex(notification.getKey());
+				}
+				if (!responseCache.asMap().containsKey(notification.getKey())) {
+					HashedWheelTimer.Timeout expiration = expirations.remove(notification.getKey());
+					if (expiration != null) {
+						expiration.cancel();
+					}
 				}
+			}
+		}).build();
+		scheduleCleanUp();
 
-				return cachedResponse;
+		if (diskCache != null) {
+			// warm restart: the responses still fresh are cached again
+			long currentTime = System.nanoTime();
+			for (byte[] key : diskCache.getKeys()) {
+				CachedResponse cachedResponse = diskCache.get(key, currentTime);
+				if (cachedResponse != null) {
+					putInMemory(CacheKey.fromBytes(key), cachedResponse);
+				}
 			}
-		});
+			LOGGER.info("Restored " + uriIndex.size() + " cached resources from " + DISK_CACHE_PATH);
+		}
+	}
+
+	private static CachePolicy createPolicy() {
+		// about the number of responses of 1 KB that fit
+		int expectedEntries = (int) Math.max(16, CACHE_MAX_BYTES / 1024);
+		if ("lru".equals(CACHE_POLICY)) {
+			return new LruPolicy();
+		} else if ("cost".equals(CACHE_POLICY)) {
+			return new CostAwarePolicy(expectedEntries);
+		} else if (!"tinylfu".equals(CACHE_POLICY)) {
+			LOGGER.warning("Unknown cache policy " + CACHE_POLICY + ", using tinylfu");
+		}
+		return new TinyLfuPolicy(expectedEntries);
+	}
+
+	private static DiskCache openDiskCache() {
+		if (DISK_CACHE_PATH.isEmpty()) {
+			return null;
+		}
+		try {
+			return new DiskCache(new File(DISK_CACHE_PATH), DISK_CACHE_SIZE, DISK_CACHE_MAX_ENTRY_SIZE);
+		} catch (IOException e) {
+			LOGGER.warning("Cannot open the disk cache " + DISK_CACHE_PATH + ": " + e.getMessage());
+			return null;
+		}
 	}
 
 	/**
@@ -121,66 +377,58 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 			return;
 		}
 
-		// only the response with success codes should be cached
+		// only the response with success codes should be cached, the errors
+		// are cached for a short time
 		ResponseCode code = response.getCode();
-		if (ResponseCode.isSuccess(code)) {
+		if (code == ResponseCode.NOT_FOUND || ResponseCode.isServerError(code)) {
+			cacheNegativeResponse(request, response);
+		} else if (ResponseCode.isSuccess(code)) {
 			// get the request
 //			Request request = response.getRequest();
-			CacheKey cacheKey = null;
-			try {
-				cacheKey = CacheKey.fromContentTypeOption(request);
-			} catch (URISyntaxException e) {
-				LOGGER.warning("Cannot create the cache key: " + e.getMessage());
-			}
+			CacheKey cacheKey = CacheKey.fromContentTypeOption(request);
+
+			// the server answers again
+			String uri = RequestFingerprint.getUri(request);
+			negativeCache.invalidate(uri);
+			unreachableServers.invalidate(RequestFingerprint.getOrigin(uri));
 
 			if (code == ResponseCode.CREATED || code == ResponseCode.DELETED || code == ResponseCode.CHANGED) {
-				// the stored response should be invalidated if the response has
+				// the stored responses should be invalidated if the response has
 				// codes: 2.01, 2.02, 2.04.
-				invalidateRequest(cacheKey);
+				invalidateRequest(request);
 			} else if (code == ResponseCode.VALID) {
-				// increase the max-age value according to the new response
-//				Option maxAgeOption = response.getFirstOption(OptionNumberRegistry.MAX_AGE);
-				Long maxAgeOption = response.getOptions().getMaxAge();
-				if (maxAgeOption != null) {
-					// get the cached response
-					Response cachedResponse = responseCache.getUnchecked(cacheKey);
-
-					// calculate the new parameters
-					long newCurrentTime = response.getTimestamp();
-					long newMaxAge = maxAgeOption.longValue();
+				// the representation with the etag of the response is fresh
+				// again, for the time given by the max-age of the response
+				Entry revalidation = revalidations.getIfPresent(request);
+				if (revalidation == null) {
+					revalidation = findRepresentation(request, response);
+				}
+				if (revalidation != null) {
+					Long maxAgeOption = response.getOptions().getMaxAge();
+					long maxAge = maxAgeOption != null ? maxAgeOption.longValue() : OptionNumberRegistry.Defaults.MAX_AGE;
 
-					// set the new parameters
-					cachedResponse.getOptions().setMaxAge(newMaxAge);
-					cachedResponse.setTimestamp(newCurrentTime);
+					// cache it again, in case it was evicted meanwhile
+					store(revalidation.cacheKey, revalidation.cachedResponse.refresh(maxAge, System.nanoTime()));
 
 					LOGGER.finer("Updated cached response");
 				} else {
-					LOGGER.warning("No max-age option set in response: " + response);
+					LOGGER.finer("No cached response to revalidate");
 				}
 			} else if (code == ResponseCode.CONTENT) {
-				// set max-age if not set
-//				Option maxAgeOption = response.getFirstOption(OptionNumberRegistry.MAX_AGE);
+				// the response is shared with the exchange and the coalesced
+				// ones, it is not modified: the default max-age is applied by
+				// the snapshot
 				Long maxAgeOption = response.getOptions().getMaxAge();
-				if (maxAgeOption == null) {
-					response.getOptions().setMaxAge(OptionNumberRegistry.Defaults.MAX_AGE);
-				}
-
-				if (maxAgeOption > 0) {
-					// cache the request
-					try {
-						// Caches loaded by a CacheLoader will call
-						// CacheLoader.load(K) to load new values into the cache
-						// when used the get method.
-						Response responseInserted = responseCache.get(cacheKey);
-						if (responseInserted != null) {
-//							if (Bench_Help.DO_LOG) 
-								LOGGER.finer("Cached response");
-						} else {
-							LOGGER.warning("Failed to insert the response in the cache");
-						}
-					} catch (Exception e) {
-						// swallow
-						LOGGER.log(Level.WARNING, "Exception while inserting the response in the cache", e);
+				if (maxAgeOption == null || maxAgeOption > 0) {
+					CachedResponse cachedResponse = CachedResponse.fromResponse(response, System.nanoTime())
+							.withFetchLatency(getFetchLatency(request));
+					if (admit(request, cacheKey, cachedResponse)) {
+						// cache the request, replacing the previous representation
+						store(cacheKey, cachedResponse);
+						tag(request);
+						LOGGER.finer("Cached response");
+					} else {
+						LOGGER.finer("Response not admitted");
 					}
 				} else {
 					// if the max-age option is set to 0, then the response
@@ -198,85 +446,261 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 		return responseCache.stats();
 	}
 
+	public RefreshStats getRefreshStats() {
+		return new RefreshStats(refreshAheadCount.get(), staleHitCount.get(), staleMissCount.get(),
+				staleIfErrorHitCount.get(), staleIfErrorMissCount.get());
+	}
+
+	/**
+	 * Sets the handler forwarding the requests that refresh the cache in the
+	 * background. The responses must be given back to
+	 * {@link #cacheResponse(Request, Response)}.
+	 * 
+	 * @param refreshHandler
+	 *            the handler, or null to disable the refreshes
+	 */
+	public void setRefreshHandler(RequestHandler refreshHandler) {
+		this.refreshHandler = refreshHandler;
+	}
+
+	/**
+	 * Sets the resource observing the coap resources read often, so that
+	 * their notifications update the cache.
+	 * 
+	 * @param observeClient
+	 *            the resource, or null to disable the observations
+	 */
+	public void setObserveClient(ProxyCoapClientResource observeClient) {
+		observedResources.setClient(observeClient);
+	}
+
 	/**
 	 * Retrieves the response in the cache that matches the request passed, null
-	 * otherwise. The method creates the key for the cache starting from the
+	 * otherwise. The cached responses are immutable snapshots shared by the
+	 * threads without lock, every hit returns a new response for its own
+	 * exchange. The method creates the key for the cache starting from the
 	 * request and checks if the cache contains it. If present, the method
 	 * updates the max-age of the linked response to consider the time passed in
-	 * the cache (according to the freshness model) and returns it. On the
-	 * contrary, if the response has passed its expiration time, it is
-	 * invalidated and the method returns null.
+	 * the cache (according to the freshness model) and returns it, refreshing
+	 * it in the background if most of its max-age is over. On the contrary,
+	 * if the response has passed its expiration time, the method returns it
+	 * while it is refreshed in the background if it is stale for less than
+	 * STALE_WHILE_REVALIDATE seconds; otherwise it returns null and the
+	 * response is either revalidated, if it has an etag, or invalidated once
+	 * it cannot be served for a server error anymore.
 	 */
 	public Response getResponse(Request request) {
 		if (!enabled) {
 			return null;
 		}
 
-		// search the desired representation
-		Response response = null;
-		CacheKey cacheKey = null;
-
-		for (CacheKey acceptKey : CacheKey.fromAcceptOptions(request)) {
-			response = responseCache.getIfPresent(acceptKey);
-			cacheKey = acceptKey;
+		observedResources.recordRead(request);
+		policy.recordAccess(getPolicyKey(request));
 
-			if (response != null) {
-				break;
-			}
-		}
+		// search the desired representation
+		Entry entry = find(request);
 
 		// if the response is not null, manage the cached response
-		if (response != null) {
+		Response response = null;
+		if (entry != null) {
 			LOGGER.finer("Cache hit");
+			CacheKey cacheKey = entry.cacheKey;
+			CachedResponse cachedResponse = entry.cachedResponse;
 
 			// check if the response is expired
 			long currentTime = System.nanoTime();
-			long nanosLeft = getRemainingLifetime(response, currentTime);
-			if (nanosLeft > 0) {
-				// if the response can be used, then update its max-age to
-				// consider the aging of the response while in the cache
-				response.getOptions().setMaxAge(nanosLeft);
-				// set the current time as the response timestamp
-				response.setTimestamp(currentTime);
+			long remainingLifetime = cachedResponse.getRemainingLifetime(currentTime);
+			if (remainingLifetime > 0) {
+				// if the response can be used, then decode it with its max-age
+				// updated to consider the aging of the response while in the
+				// cache
+				response = cachedResponse.toResponse(currentTime, EncodedResponse.getContentCoding(request));
+
+				long maxAge = cachedResponse.getMaxAge();
+				// the notifications of an observed resource refresh it
+				if (REFRESH_AHEAD > 0 && (maxAge - remainingLifetime) * 100 >= maxAge * REFRESH_AHEAD
+						&& !observedResources.isObserved(cacheKey.proxyUri)
+						&& refresh(request, cacheKey, cachedResponse) == RefreshResult.STARTED) {
+					LOGGER.finer("Refreshing response ahead");
+					refreshAheadCount.incrementAndGet();
+				}
+			} else if (-remainingLifetime < STALE_WHILE_REVALIDATE
+					&& refresh(request, cacheKey, cachedResponse) != RefreshResult.UNAVAILABLE) {
+				LOGGER.finer("Stale response served while refreshed");
+				staleHitCount.incrementAndGet();
+				response = cachedResponse.toResponse(currentTime, EncodedResponse.getContentCoding(request));
 			} else {
 				LOGGER.finer("Expired response");
+				staleMissCount.incrementAndGet();
 
-				// try to validate the response
-				response = validate(cacheKey);
-				if (response != null) {
-					LOGGER.finer("Validation successful");
-				} else {
+				// try to validate the response with the server
+				if (validate(request, cacheKey, cachedResponse)) {
+					LOGGER.finer("Revalidating response");
+				} else if (-remainingLifetime >= STALE_IF_ERROR) {
 					invalidateRequest(cacheKey);
 				}
 			}
 		}
 
+		if (response == null) {
+			response = getNegativeResponse(request);
+		}
+		if (response == null) {
+			markMiss(request);
+		}
+
 		return response;
 	}
 	
+	/**
+	 * Invalidates all the representations cached for the proxy-uri of the
+	 * request.
+	 */
 	public void invalidateRequest(Request request) {
-		invalidateRequest(CacheKey.fromAcceptOptions(request));
+		String uri = RequestFingerprint.getUri(request);
+		CacheKey[] representations;
+		synchronized (uriIndex) {
+			representations = uriIndex.remove(uri);
+			uriTrie.remove(uri);
+		}
+		invalidate(uri, representations);
 		LOGGER.finer("Invalidated request");
 	}
 
+	/**
+	 * Invalidates all the representations cached for the proxy-uris starting
+	 * with a prefix of whole path segments, e.g., coap://10.0.0.7/sensors
+	 * invalidates coap://10.0.0.7/sensors/temperature but not
+	 * coap://10.0.0.7/sensorsX.
+	 * 
+	 * @param prefix
+	 *            the prefix of the proxy-uris
+	 * @return the number of proxy-uris invalidated
+	 */
+	public int invalidatePrefix(String prefix) {
+		synchronized (uriIndex) {
+			return invalidate(uriTrie.removePrefix(RequestFingerprint.canonicalize(prefix)));
+		}
+	}
+
+	/**
+	 * Invalidates all the representations cached for the proxy-uris of a
+	 * host, whatever their scheme and port.
+	 * 
+	 * @param host
+	 *            the host name or address
+	 * @return the number of proxy-uris invalidated
+	 */
+	public int invalidateHost(String host) {
+		synchronized (uriIndex) {
+			return invalidate(uriTrie.removeHost(host));
+		}
+	}
+
+	/**
+	 * Invalidates all the representations cached for the proxy-uris tagged by
+	 * {@link #tagRequest(Request, String...)}.
+	 * 
+	 * @param tag
+	 *            the tag
+	 * @return the number of proxy-uris invalidated
+	 */
+	public int invalidateTag(String tag) {
+		synchronized (uriIndex) {
+			return invalidate(uriTrie.removeTag(tag));
+		}
+	}
+
+	/**
+	 * Tags the response of a request, so that it can be invalidated with the
+	 * other responses of the same tags, e.g., the resources of a device. The
+	 * tags apply to the proxy-uri of the request as long as it is cached, and
+	 * are not kept by the second tier. The http proxy tags the requests with
+	 * the Cache-Tag header of the client.
+	 * 
+	 * @param request
+	 *            the request, before it is forwarded
+	 * @param tags
+	 *            the tags, without comma
+	 */
+	public static void tagRequest(Request request, String... tags) {
+		Map<String, String> context = new HashMap<String, String>();
+		if (request.getUserContext() != null) {
+			context.putAll(request.getUserContext());
+		}
+		StringBuilder builder = new StringBuilder();
+		String previous = context.get(TAGS_KEY);
+		if (previous != null) {
+			builder.append(previous);
+		}
+		for (String tag : tags) {
+			if (builder.length() > 0) {
+				builder.append(',');
+			}
+			builder.append(tag);
+		}
+		context.put(TAGS_KEY, builder.toString());
+		request.setUserContext(context);
+	}
+
 	@Override
 	public void handleDELETE(CoapExchange exchange) {
+		// a query removes a part of the cache
+		List<String> queries = exchange.getRequestOptions().getUriQuery();
+		if (!queries.isEmpty()) {
+			int count = 0;
+			for (String query : queries) {
+				int index = query.indexOf('=');
+				String name = index < 0 ? query : query.substring(0, index);
+				String value = index < 0 ? "" : query.substring(index + 1);
+				if (value.isEmpty()) {
+					exchange.respond(ResponseCode.BAD_REQUEST, "Missing value: " + query);
+					return;
+				} else if (name.equals("prefix")) {
+					count += invalidatePrefix(value);
+				} else if (name.equals("host")) {
+					count += invalidateHost(value);
+				} else if (name.equals("tag")) {
+					count += invalidateTag(value);
+				} else {
+					exchange.respond(ResponseCode.BAD_REQUEST, "Unknown query: " + query);
+					return;
+				}
+			}
+			exchange.respond(ResponseCode.DELETED, count + " resources invalidated");
+			return;
+		}
+
+		observedResources.cancelAll();
 		responseCache.invalidateAll();
+		negativeCache.invalidateAll();
+		unreachableServers.invalidateAll();
+		if (diskCache != null) {
+			diskCache.clear();
+		}
+		// the responses only in the second tier are still indexed
+		synchronized (uriIndex) {
+			uriIndex.clear();
+			uriTrie.clear();
+		}
 		exchange.respond(ResponseCode.DELETED);
 	}
 
 	@Override
 	public void handleGET(CoapExchange exchange) {
 		StringBuilder builder = new StringBuilder();
-		builder.append("Available commands:\n - GET: show cached values\n - DELETE: empty the cache\n - POST: enable/disable caching\n");
+		builder.append("Available commands:\n - GET: show cached values\n - DELETE: empty the cache\n - DELETE ?prefix=uri, ?host=host or ?tag=tag: invalidate a part of the cache\n - POST: enable/disable caching\n");
+		builder.append("\nPolicy: " + policy.getClass().getSimpleName() + ", weight " + memoryWeight.get() + "/" + CACHE_MAX_BYTES + "\n");
 
 		// get cache values
 		builder.append("\nCached values:\n");
-		for (CacheKey cachedRequest : responseCache.asMap().keySet()) {
-			Response response = responseCache.asMap().get(cachedRequest);
+		long currentTime = System.nanoTime();
+		for (Map.Entry<CacheKey, CachedResponse> entry : responseCache.asMap().entrySet()) {
+			CacheKey cachedRequest = entry.getKey();
 
 			builder.append(cachedRequest.getProxyUri().toString() + " (" + 
-					MediaTypeRegistry.toString(cachedRequest.getMediaType()) + ") > " + getRemainingLifetime(response) + " seconds | (" + cachedRequest.getMediaType() + ")\n");
+					MediaTypeRegistry.toString(cachedRequest.getMediaType()) + ") > " + entry.getValue().getRemainingLifetime(currentTime) + " seconds | (" + cachedRequest.getMediaType() + ") "
+					+ entry.getValue().getSize() + " bytes\n");
 		}
 
 		exchange.respond(ResponseCode.CONTENT, builder.toString());
@@ -289,105 +713,498 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 		exchange.respond(ResponseCode.CHANGED, content);
 	}
 
-	private long getRemainingLifetime(Response response) {
-		return getRemainingLifetime(response, System.nanoTime());
-	}
-
 	/**
-	 * Method that checks if the lifetime allowed for the response if expired.
-	 * The result is calculated with the initial timestamp (when the response
-	 * has been received) and the max-age option compared against the current
-	 * timestamp. If the max-age option is not specified, it will be assumed the
-	 * default (60 seconds).
+	 * Invalidates the representations of proxy-uris removed from the index,
+	 * while holding the lock of the index. The error responses are left to
+	 * expire within NEGATIVE_TTL seconds.
 	 * 
-	 * @param response
-	 *            the response
-	 * @param currentTime
-	 * @return true, if is expired
-	 */
-	private long getRemainingLifetime(Response response, long currentTime) {
-		// get the timestamp
-		long arriveTime = response.getTimestamp();
-		
-		Long maxAgeOption = response.getOptions().getMaxAge();
-		long oldMaxAge = OptionNumberRegistry.Defaults.MAX_AGE;
-		if (maxAgeOption != null) {
-			oldMaxAge = maxAgeOption.longValue();
+	 * @return the number of proxy-uris
+	 */
+	private int invalidate(List<String> uris) {
+		for (String uri : uris) {
+			invalidate(uri, uriIndex.remove(uri));
+		}
+		LOGGER.fine("Invalidated " + uris.size() + " resources");
+		return uris.size();
+	}
+
+	private void invalidate(String uri, CacheKey[] representations) {
+		negativeCache.invalidate(uri);
+		if (representations != null) {
+			responseCache.invalidateAll(Arrays.asList(representations));
+			if (diskCache != null) {
+				for (CacheKey representation : representations) {
+					diskCache.remove(representation.toBytes());
+				}
+			}
 		}
+	}
 
-		// calculate the time that the response has spent in the cache
-		double secondsInCache = TimeUnit.NANOSECONDS.toSeconds(currentTime - arriveTime);
-		int cacheTime = Ints.checkedCast(Math.round(secondsInCache));
-		return oldMaxAge - cacheTime;
+	/**
+	 * Tags the proxy-uri of a request just cached with the tags of the
+	 * request.
+	 */
+	private void tag(Request request) {
+		Map<String, String> context = request.getUserContext();
+		String tags = context == null ? null : context.get(TAGS_KEY);
+		if (tags == null) {
+			return;
+		}
+		String uri = RequestFingerprint.getUri(request);
+		synchronized (uriIndex) {
+			for (String tag : tags.split(",")) {
+				uriTrie.tag(uri, tag);
+			}
+		}
 	}
 
 	private void invalidateRequest(CacheKey cacheKey) {
 		responseCache.invalidate(cacheKey);
+		if (diskCache != null) {
+			diskCache.remove(cacheKey.toBytes());
+		}
+		unindex(cacheKey);
+	}
+
+	/**
+	 * Gets a response from the first tier, or from the second one. In the
+	 * latter case the response is moved back to the first tier.
+	 */
+	private CachedResponse lookup(CacheKey cacheKey) {
+		CachedResponse cachedResponse = responseCache.getIfPresent(cacheKey);
+		if (cachedResponse == null && diskCache != null) {
+			cachedResponse = diskCache.get(cacheKey.toBytes(), System.nanoTime());
+			if (cachedResponse != null) {
+				putInMemory(cacheKey, cachedResponse);
+			}
+		}
+		return cachedResponse;
 	}
 
-	private void invalidateRequest(List<CacheKey> cacheKeys) {
-		responseCache.invalidateAll(cacheKeys);
+	private int weigh(CacheKey cacheKey, CachedResponse cachedResponse) {
+		return cacheKey.getSize() + policy.weigh(cachedResponse.getSize(), cachedResponse.getFetchLatency());
 	}
 
-	private Response validate(CacheKey cachedRequest) {
-		// TODO
-		return null;
+	/**
+	 * Decides whether a new response is cached. A response replacing another
+	 * one with the same key is always cached.
+	 */
+	private boolean admit(Request request, CacheKey cacheKey, CachedResponse cachedResponse) {
+		if (responseCache.asMap().containsKey(cacheKey)) {
+			return true;
+		}
+		// Guava evicts by segment before the bound is reached
+		boolean full = memoryWeight.get() + weigh(cacheKey, cachedResponse) > CACHE_MAX_BYTES * 9 / 10;
+		return policy.admit(getPolicyKey(request), cachedResponse.getFetchLatency(), full);
 	}
 
 	/**
-	 * Nested class that normalizes the variable fields of the coap requests to
-	 * be used as a key for the cache. The class tries to handle also the
-	 * different requests that must refer to the same response (e.g., requests
-	 * that with or without the accept options produce the same response).
+	 * @return the hash identifying the resource of the request for the policy
 	 */
-	private static final class CacheKey {
-		private final String proxyUri;
-		private final int mediaType;
-		private Response response;
-		private final byte[] payload;
+	private static int getPolicyKey(Request request) {
+		return 31 * RequestFingerprint.getUri(request).hashCode() + RequestFingerprint.getPayloadDigest(request).hashCode();
+	}
 
-		/**
-		 * Creates a list of keys for the cache from a request with multiple
-		 * accept options set. Method needed to search for content-type
-		 * wildcards in the cache (text/* means: text/plain, text/html,
-		 * text/xml, text/csv, etc.). If the accept option is not set, it simply
-		 * gives back the keys for every representation.
-		 * 
-		 * @param request
-		 * @return the list of cache keys
-		 */
-		private static List<CacheKey> fromAcceptOptions(Request request) {
-			if (request == null) {
-				throw new IllegalArgumentException("request == null");
+	/**
+	 * Records the time at which a request is forwarded because it is not
+	 * cached.
+	 */
+	private static void markMiss(Request request) {
+		Map<String, String> context = new HashMap<String, String>();
+		if (request.getUserContext() != null) {
+			context.putAll(request.getUserContext());
+		}
+		context.put(MISS_KEY, Long.toString(System.nanoTime()));
+		request.setUserContext(context);
+	}
+
+	/**
+	 * @return the nanoseconds since the request was missed by the cache, 0 if
+	 *         it was not
+	 */
+	private static long getFetchLatency(Request request) {
+		Map<String, String> context = request.getUserContext();
+		String miss = context == null ? null : context.get(MISS_KEY);
+		return miss == null ? 0 : System.nanoTime() - Long.parseLong(miss);
+	}
+
+	/**
+	 * Caches a response in the first tier until it expires.
+	 */
+	private void putInMemory(CacheKey cacheKey, CachedResponse cachedResponse) {
+		responseCache.put(cacheKey, cachedResponse);
+		memoryWeight.addAndGet(weigh(cacheKey, cachedResponse));
+		index(cacheKey);
+		scheduleExpiration(cacheKey, cachedResponse);
+	}
+
+	/**
+	 * Schedules the removal of a response at the end of its max-age, or of
+	 * the time it can be revalidated if it has an etag. The removal is done
+	 * only if the response has not been replaced meanwhile.
+	 */
+	private void scheduleExpiration(final CacheKey cacheKey, final CachedResponse cachedResponse) {
+		// kept while it can be served stale or revalidated
+		int staleLifetime = Math.max(STALE_WHILE_REVALIDATE, STALE_IF_ERROR);
+		if (!cachedResponse.getETags().isEmpty()) {
+			staleLifetime = Math.max(staleLifetime, CACHE_RESPONSE_MAX_AGE);
+		}
+		long lifetime = cachedResponse.getRemainingLifetime(System.nanoTime()) + staleLifetime;
+		HashedWheelTimer.Timeout expiration = maintenanceTimer.newTimeout(new Runnable() {
+			public void run() {
+				if (responseCache.asMap().remove(cacheKey, cachedResponse)) {
+					LOGGER.finer("Expired response removed");
+				}
 			}
+		}, Math.max(0, lifetime), TimeUnit.SECONDS);
+		HashedWheelTimer.Timeout previous = expirations.put(cacheKey, expiration);
+		if (previous != null) {
+			previous.cancel();
+		}
+	}
 
-			List<CacheKey> cacheKeys = new LinkedList<CacheKey>();
-			String proxyUri = request.getOptions().getProxyUri();
-			try {
-				// TODO why not UTF-8?
-				proxyUri = URLEncoder.encode(proxyUri, "ISO-8859-1");
-			} catch (UnsupportedEncodingException e) {
-				LOGGER.severe("ISO-8859-1 encoding not supported: " + e.getMessage());
+	/**
+	 * Runs the pending maintenance of the caches on the timer thread.
+	 */
+	private void scheduleCleanUp() {
+		maintenanceTimer.newTimeout(new Runnable() {
+			public void run() {
+				responseCache.cleanUp();
+				revalidations.cleanUp();
+				negativeCache.cleanUp();
+				unreachableServers.cleanUp();
+				scheduleCleanUp();
 			}
-			byte[] payload = request.getPayload();
-			
-			// Implementation in new Cf (Only one accept option allowed)
-			Integer accept = request.getOptions().getAccept();
-			if (accept != null) {
-				int mediaType = accept.intValue();
-				CacheKey cacheKey = new CacheKey(proxyUri, mediaType, payload);
-				cacheKeys.add(cacheKey);
-			} else {
-				// if the accept options are not set, simply set all media types
-				// FIXME not efficient
-				for (Integer acceptType : MediaTypeRegistry.getAllMediaTypes()) {
-					CacheKey cacheKey = new CacheKey(proxyUri, acceptType, payload);
-					cacheKeys.add(cacheKey);
+		}, CLEANUP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Caches a response in both tiers.
+	 */
+	private void store(CacheKey cacheKey, CachedResponse cachedResponse) {
+		putInMemory(cacheKey, cachedResponse);
+		refreshes.remove(cacheKey);
+		if (diskCache != null) {
+			long expiration = System.currentTimeMillis()
+					+ TimeUnit.SECONDS.toMillis(cachedResponse.getRemainingLifetime(System.nanoTime()));
+			diskCache.put(cacheKey.toBytes(), cachedResponse, expiration);
+		}
+	}
+
+	/**
+	 * Adds the key of a newly cached response to the index of its proxy-uri.
+	 */
+	private void index(CacheKey cacheKey) {
+		synchronized (uriIndex) {
+			CacheKey[] representations = uriIndex.get(cacheKey.proxyUri);
+			if (representations == null) {
+				uriIndex.put(cacheKey.proxyUri, new CacheKey[] { cacheKey });
+				uriTrie.add(cacheKey.proxyUri);
+				return;
+			}
+			for (CacheKey representation : representations) {
+				if (representation.equals(cacheKey)) {
+					return;
 				}
 			}
+			CacheKey[] updated = Arrays.copyOf(representations, representations.length + 1);
+			updated[representations.length] = cacheKey;
+			uriIndex.put(cacheKey.proxyUri, updated);
+		}
+	}
 
-			return cacheKeys;
+	/**
+	 * Removes the key of a response no longer cached from the index of its
+	 * proxy-uri.
+	 */
+	private void unindex(CacheKey cacheKey) {
+		synchronized (uriIndex) {
+			CacheKey[] representations = uriIndex.get(cacheKey.proxyUri);
+			if (representations == null) {
+				return;
+			}
+			for (int i = 0; i < representations.length; i++) {
+				if (representations[i].equals(cacheKey)) {
+					if (representations.length == 1) {
+						uriIndex.remove(cacheKey.proxyUri);
+						uriTrie.remove(cacheKey.proxyUri);
+					} else {
+						CacheKey[] updated = new CacheKey[representations.length - 1];
+						System.arraycopy(representations, 0, updated, 0, i);
+						System.arraycopy(representations, i + 1, updated, i, updated.length - i);
+						uriIndex.put(cacheKey.proxyUri, updated);
+					}
+					return;
+				}
+			}
 		}
+	}
+
+	/**
+	 * Gets the response to send to the client. A 2.03 response to a request
+	 * made conditional by the cache is replaced by the representation just
+	 * refreshed, and a server error by the stale representation if it is
+	 * stale for less than STALE_IF_ERROR seconds.
+	 */
+	public Response getRevalidatedResponse(Request request, Response response) {
+		Entry revalidation = revalidations.getIfPresent(request);
+		if (revalidation != null) {
+			revalidations.invalidate(request);
+			if (response.getCode() == ResponseCode.VALID) {
+				// the representation refreshed by the 2.03 response
+				CachedResponse cachedResponse = responseCache.getIfPresent(revalidation.cacheKey);
+				if (cachedResponse == null) {
+					cachedResponse = revalidation.cachedResponse;
+				}
+				LOGGER.finer("Validation successful");
+				return cachedResponse.toResponse(System.nanoTime(), EncodedResponse.getContentCoding(request));
+			}
+		} else if (response.getCode() == ResponseCode.VALID && request.getOptions().getETagCount() == 0
+				&& request.getOptions().hasProxyUri()) {
+			// a copy of the 2.03 response to a revalidation, for a request
+			// coalesced with it that has no etag to be valid
+			Entry representation = findRepresentation(request, response);
+			if (representation != null) {
+				return representation.cachedResponse.toResponse(System.nanoTime(),
+						EncodedResponse.getContentCoding(request));
+			}
+		}
+
+		if (enabled && ResponseCode.isServerError(response.getCode()) && request.getOptions().hasProxyUri()) {
+			Entry stale = revalidation != null ? revalidation : find(request);
+			long currentTime = System.nanoTime();
+			if (stale != null && -stale.cachedResponse.getRemainingLifetime(currentTime) < STALE_IF_ERROR) {
+				LOGGER.finer("Stale response served instead of " + response.getCode());
+				staleIfErrorHitCount.incrementAndGet();
+				return stale.cachedResponse.toResponse(currentTime, EncodedResponse.getContentCoding(request));
+			}
+			staleIfErrorMissCount.incrementAndGet();
+		}
+		return response;
+	}
+
+	/**
+	 * Makes the forwarded copy of the request conditional on the etag of the
+	 * stale response, so that the server answers with a 2.03 response,
+	 * without payload, if the response is still valid. The etag is recorded
+	 * in the user context of the request, see {@link #getValidator(Request)}.
+	 * A request already conditional is left as it is, since the client
+	 * expects the answer to its own etags.
+	 * 
+	 * @return true, if the request will revalidate the response
+	 */
+	private boolean validate(Request request, CacheKey cacheKey, CachedResponse cachedResponse) {
+		if (request.getOptions().getETagCount() > 0) {
+			return false;
+		}
+		List<byte[]> etags = cachedResponse.getETags();
+		if (etags.isEmpty()) {
+			return false;
+		}
+		revalidations.put(request, new Entry(cacheKey, cachedResponse));
+		Map<String, String> context = new HashMap<String, String>();
+		if (request.getUserContext() != null) {
+			context.putAll(request.getUserContext());
+		}
+		context.put(VALIDATOR_KEY, new String(etags.get(0), ISO_8859_1));
+		request.setUserContext(context);
+		return true;
+	}
+
+	/**
+	 * Gets the etag the cache revalidates with a request. The forwarding
+	 * resources add it to the request they send to the server, the request
+	 * of the client is not modified.
+	 * 
+	 * @param request
+	 *            the request of the client
+	 * @return the etag, or null if the request does not revalidate a cached
+	 *         response
+	 */
+	static byte[] getValidator(Request request) {
+		Map<String, String> context = request.getUserContext();
+		String validator = context == null ? null : context.get(VALIDATOR_KEY);
+		return validator == null ? null : validator.getBytes(ISO_8859_1);
+	}
+
+	/**
+	 * Caches an error response of a GET request for NEGATIVE_TTL seconds at
+	 * most. An {@link UpstreamTimeoutResponse} means that the server did not
+	 * answer, and marks the server unreachable; a 5.04 response of the server
+	 * itself does not. The 5.04 responses of the cache have a max-age of 0, so
+	 * that they are not cached again.
+	 */
+	private void cacheNegativeResponse(Request request, Response response) {
+		if (request.getCode() != Code.GET) {
+			return;
+		}
+		String uri = RequestFingerprint.getUri(request);
+		Long maxAgeOption = response.getOptions().getMaxAge();
+		if (response instanceof UpstreamTimeoutResponse && UNREACHABLE_TTL > 0) {
+			LOGGER.finer("Server unreachable");
+			unreachableServers.put(RequestFingerprint.getOrigin(uri), Boolean.TRUE);
+		}
+		long ttl = maxAgeOption == null ? NEGATIVE_TTL : Math.min(maxAgeOption.longValue(), NEGATIVE_TTL);
+		if (ttl > 0) {
+			long currentTime = System.nanoTime();
+			negativeCache.put(uri, CachedResponse.fromResponse(response, currentTime).refresh(ttl, currentTime));
+			LOGGER.finer("Cached error response");
+		}
+	}
+
+	/**
+	 * Gets the error response cached for the proxy-uri of a GET request, or a
+	 * 5.04 response if the server is unreachable.
+	 * 
+	 * @return the response, or null if the request must be forwarded
+	 */
+	private Response getNegativeResponse(Request request) {
+		if (request.getCode() != Code.GET) {
+			return null;
+		}
+		String uri = RequestFingerprint.getUri(request);
+		long currentTime = System.nanoTime();
+		CachedResponse cachedResponse = negativeCache.getIfPresent(uri);
+		if (cachedResponse != null && cachedResponse.getRemainingLifetime(currentTime) > 0) {
+			LOGGER.finer("Negative cache hit");
+			return cachedResponse.toResponse(currentTime, EncodedResponse.getContentCoding(request));
+		}
+		if (UNREACHABLE_TTL > 0 && unreachableServers.getIfPresent(RequestFingerprint.getOrigin(uri)) != null) {
+			LOGGER.finer("Server unreachable, request not forwarded");
+			Response response = new Response(CoapTranslator.STATUS_TIMEOUT);
+			response.getOptions().setMaxAge(0);
+			return response;
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the cached representation matching the request, fresh or stale.
+	 */
+	private Entry find(Request request) {
+		Integer accept = request.getOptions().getAccept();
+		if (accept != null) {
+			CacheKey cacheKey = CacheKey.fromRequest(request, accept.intValue());
+			CachedResponse cachedResponse = lookup(cacheKey);
+			return cachedResponse != null ? new Entry(cacheKey, cachedResponse) : null;
+		}
+		// any representation of the proxy-uri
+		CacheKey[] representations = uriIndex.get(RequestFingerprint.getUri(request));
+		if (representations != null) {
+			for (CacheKey representation : representations) {
+				if (representation.matchesPayload(request)) {
+					CachedResponse cachedResponse = lookup(representation);
+					if (cachedResponse != null) {
+						return new Entry(representation, cachedResponse);
+					}
+					// dropped by the second tier
+					unindex(representation);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Refreshes a response in the background with a copy of the request,
+	 * conditional on the etag of the response if it has one. Only one refresh
+	 * of a response is pending at a time.
+	 */
+	private RefreshResult refresh(Request request, CacheKey cacheKey, CachedResponse cachedResponse) {
+		RequestHandler handler = refreshHandler;
+		// the refreshes are forwarded through the coap client, the responses
+		// of the http servers are revalidated when they expire instead
+		if (handler == null || request.getCode() != Code.GET || !cacheKey.proxyUri.startsWith("coap")) {
+			return RefreshResult.UNAVAILABLE;
+		}
+		if (unreachableServers.getIfPresent(RequestFingerprint.getOrigin(cacheKey.proxyUri)) != null) {
+			// the stale response is served until the server answers again
+			return RefreshResult.PENDING;
+		}
+		long currentTime = System.nanoTime();
+		Long started = refreshes.putIfAbsent(cacheKey, currentTime);
+		if (started != null && (currentTime - started < TimeUnit.SECONDS.toNanos(REFRESH_TIMEOUT)
+				|| !refreshes.replace(cacheKey, started, currentTime))) {
+			return RefreshResult.PENDING;
+		}
+
+		Request refresh = new Request(request.getCode(), request.getType());
+		refresh.setOptions(new OptionSet(request.getOptions()));
+		// the etags of the client are not the concern of the cache
+		refresh.getOptions().clearETags();
+		refresh.setPayload(request.getPayload());
+		// the fingerprint tells the forwarding resources that the request
+		// has been looked up already
+		refresh.setUserContext(request.getUserContext());
+		validate(refresh, cacheKey, cachedResponse);
+		handler.handleRequest(refresh);
+		return RefreshResult.STARTED;
+	}
+
+	/**
+	 * The outcome of {@link ProxyCacheResource#refresh}.
+	 */
+	private enum RefreshResult {
+		/** A refresh has been forwarded. */
+		STARTED,
+		/** A refresh was already forwarded, or the server is unreachable. */
+		PENDING,
+		/** The response cannot be refreshed in the background. */
+		UNAVAILABLE
+	}
+
+	/**
+	 * Finds the cached representation of the proxy-uri of the request that
+	 * has the etag of the 2.03 response, or of the request if the response
+	 * has none.
+	 */
+	private Entry findRepresentation(Request request, Response response) {
+		List<byte[]> etags = response.getOptions().getETags();
+		if (etags.isEmpty()) {
+			etags = request.getOptions().getETags();
+		}
+		CacheKey[] representations = uriIndex.get(RequestFingerprint.getUri(request));
+		if (etags.isEmpty() || representations == null) {
+			return null;
+		}
+		for (CacheKey representation : representations) {
+			CachedResponse cachedResponse = lookup(representation);
+			if (cachedResponse != null && representation.matchesPayload(request)) {
+				for (byte[] etag : cachedResponse.getETags()) {
+					if (Arrays.equals(etag, etags.get(0))) {
+						return new Entry(representation, cachedResponse);
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A cached response and its key.
+	 */
+	private static final class Entry {
+		private final CacheKey cacheKey;
+		private final CachedResponse cachedResponse;
+
+		Entry(CacheKey cacheKey, CachedResponse cachedResponse) {
+			this.cacheKey = cacheKey;
+			this.cachedResponse = cachedResponse;
+		}
+	}
+
+	/**
+	 * Nested class that normalizes the variable fields of the coap requests to
+	 * be used as a key for the cache: the canonical proxy-uri and the digest
+	 * of the payload, see {@link RequestFingerprint}, and the media type. The
+	 * requests without accept option are matched with the keys of the same
+	 * proxy-uri found in the index.
+	 */
+	private static final class CacheKey {
+		private final String proxyUri;
+		private final int mediaType;
+		private final String payloadDigest;
+		private final int hash;
 
 		/**
 		 * Create a key for the cache starting from a request and the
@@ -395,35 +1212,84 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 		 * 
 		 * @param request
 		 * @return
-		 * @throws URISyntaxException
 		 */
-		private static CacheKey fromContentTypeOption(Request request) throws URISyntaxException {
+		private static CacheKey fromContentTypeOption(Request request) {
 			if (request == null) {
 				throw new IllegalArgumentException("request == null");
 			}
 
 			Response response = request.getResponse();
 			if (response == null) {
-				return fromAcceptOptions(request).get(0);
+				Integer accept = request.getOptions().getAccept();
+				return fromRequest(request, accept == null ? MediaTypeRegistry.UNDEFINED : accept.intValue());
 			}
 
-			String proxyUri = request.getOptions().getProxyUri();
 			Integer mediaType = response.getOptions().getContentFormat();
 			if (mediaType == null) 
 				mediaType = MediaTypeRegistry.TEXT_PLAIN;
-			byte[] payload = request.getPayload();
 
 			// create the new cacheKey
-			CacheKey cacheKey = new CacheKey(proxyUri, mediaType, payload);
-			cacheKey.setResponse(response);
+			return fromRequest(request, mediaType);
+		}
 
-			return cacheKey;
+		/**
+		 * Create a key for the cache from the fingerprint of a request.
+		 */
+		private static CacheKey fromRequest(Request request, int mediaType) {
+			return new CacheKey(RequestFingerprint.getUri(request), mediaType, RequestFingerprint.getPayloadDigest(request));
 		}
 
-		public CacheKey(String proxyUri, int mediaType, byte[] payload) {
+		private CacheKey(String proxyUri, int mediaType, String payloadDigest) {
 			this.proxyUri = proxyUri;
 			this.mediaType = mediaType;
-			this.payload = payload;
+			this.payloadDigest = payloadDigest;
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + mediaType;
+			result = prime * result + payloadDigest.hashCode();
+			result = prime * result + proxyUri.hashCode();
+			this.hash = result;
+		}
+
+		/**
+		 * @return the approximate size of the key in bytes
+		 */
+		private int getSize() {
+			return proxyUri.length() + payloadDigest.length();
+		}
+
+		/**
+		 * @return true, if the key is for the payload of the request
+		 */
+		private boolean matchesPayload(Request request) {
+			return payloadDigest.equals(RequestFingerprint.getPayloadDigest(request));
+		}
+
+		/**
+		 * Decodes a key stored by the second tier.
+		 */
+		private static CacheKey fromBytes(byte[] bytes) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			byte[] uri = new byte[buffer.getShort() & 0xFFFF];
+			buffer.get(uri);
+			int mediaType = buffer.getInt();
+			byte[] digest = new byte[buffer.remaining()];
+			buffer.get(digest);
+			return new CacheKey(new String(uri, UTF_8), mediaType, new String(digest, UTF_8));
+		}
+
+		/**
+		 * Encodes the key for the second tier.
+		 */
+		private byte[] toBytes() {
+			byte[] uri = proxyUri.getBytes(UTF_8);
+			byte[] digest = payloadDigest.getBytes(UTF_8);
+			ByteBuffer buffer = ByteBuffer.allocate(2 + uri.length + 4 + digest.length);
+			buffer.putShort((short) uri.length);
+			buffer.put(uri);
+			buffer.putInt(mediaType);
+			buffer.put(digest);
+			return buffer.array();
 		}
 
 		/*
@@ -442,20 +1308,8 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 				return false;
 			}
 			CacheKey other = (CacheKey) obj;
-			if (mediaType != other.mediaType) {
-				return false;
-			}
-			if (!Arrays.equals(payload, other.payload)) {
-				return false;
-			}
-			if (proxyUri == null) {
-				if (other.proxyUri != null) {
-					return false;
-				}
-			} else if (!proxyUri.equals(other.proxyUri)) {
-				return false;
-			}
-			return true;
+			return hash == other.hash && mediaType == other.mediaType
+					&& payloadDigest.equals(other.payloadDigest) && proxyUri.equals(other.proxyUri);
 		}
 
 		/**
@@ -466,36 +1320,19 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 		}
 
 		/**
-		 * @return the proxyUri
+		 * @return the canonical proxyUri
 		 */
 		public String getProxyUri() {
 			return proxyUri;
 		}
 
-		/**
-		 * @return the response
-		 */
-		public Response getResponse() {
-			return response;
-		}
-
 		/*
 		 * (non-Javadoc)
 		 * @see java.lang.Object#hashCode()
 		 */
 		@Override
 		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + mediaType;
-			result = prime * result + Arrays.hashCode(payload);
-			result = prime * result + (proxyUri == null ? 0 : proxyUri.hashCode());
-			return result;
-		}
-
-		private void setResponse(Response response) {
-			this.response = response;
-
+			return hash;
 		}
 	}
 
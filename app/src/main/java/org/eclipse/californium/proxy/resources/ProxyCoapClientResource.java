@@ -17,11 +17,22 @@
  ******************************************************************************/
 package org.eclipse.californium.proxy.resources;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import org.eclipse.californium.core.coap.BlockOption;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.proxy.AccessLog;
+import org.eclipse.californium.proxy.Block2Stream;
 import org.eclipse.californium.proxy.CoapTranslator;
+import org.eclipse.californium.proxy.LatencyStats;
+import org.eclipse.californium.proxy.StreamedResponse;
 import org.eclipse.californium.proxy.TranslationException;
+import org.eclipse.californium.proxy.UpstreamTimeoutResponse;
 
 
 /**
@@ -40,37 +51,122 @@ public class ProxyCoapClientResource extends ForwardingResource {
 		getAttributes().setTitle("Forward the requests to a CoAP server.");
 	}
 
+	/**
+	 * Forwards the request asynchronously. The response of the coap server is
+	 * delivered to the exchange by the message observer of the outgoing
+	 * request, so that no thread waits for it.
+	 */
 	@Override
-	public Response forwardRequest(Request request) {
-		LOGGER.info("ProxyCoAP2CoAP forwards "+request);
-		Request incomingRequest = request;
+	protected void forward(final Exchange exchange) {
 
-		// check the invariant: the request must have the proxy-uri set
-		if (!incomingRequest.getOptions().hasProxyUri()) {
-			LOGGER.warning("Proxy-uri option not set.");
-			return new Response(ResponseCode.BAD_OPTION);
+		final Request outgoingRequest;
+		try {
+			outgoingRequest = getOutgoingRequest(exchange.getRequest());
+		} catch (TranslationException e) {
+			LOGGER.warning("Proxy-uri option malformed: " + e.getMessage());
+			respond(exchange, new Response(CoapTranslator.STATUS_FIELD_MALFORMED));
+			return;
+		} catch (IllegalArgumentException e) {
+			// thrown by setURI for an unknown host or scheme
+			LOGGER.warning("Cannot forward to the proxy-uri: " + e.getMessage());
+			respond(exchange, new Response(CoapTranslator.STATUS_TRANSLATION_ERROR));
+			return;
+		}
+		if (outgoingRequest == null) {
+			respond(exchange, new Response(ResponseCode.BAD_OPTION));
+			return;
 		}
 
-		// remove the fake uri-path
-		// FIXME: HACK // TODO: why? still necessary in new Cf?
-		incomingRequest.getOptions().clearUriPath();
+		// relay the large resources block by block if the client can
+		// receive them that way
+		final boolean streaming = Block2Stream.isStreamingAccepted(exchange.getRequest());
+		final long start = System.nanoTime();
+		// the exchange is answered once, whichever event comes first
+		final AtomicBoolean answered = new AtomicBoolean();
+
+		outgoingRequest.addMessageObserver(new MessageObserverAdapter() {
+
+			@Override
+			public void onResponse(Response response) {
+				if (!answered.compareAndSet(false, true)) {
+					return;
+				}
+				LOGGER.finer("Coap response received.");
+				LatencyStats.getStandard().recordUpstream(getHost(outgoingRequest), start);
+				if (AccessLog.getStandard().sample(exchange.getRequest())) {
+					AccessLog.getStandard().log(AccessLog.Event.UPSTREAM, exchange.getRequest().getOptions().getProxyUri(),
+							response.getCode(), System.nanoTime() - start);
+				}
+
+				// create the real response for the original request
+				Response outgoingResponse = CoapTranslator.getResponse(response);
+				BlockOption block2 = response.getOptions().getBlock2();
+				if (streaming && block2 != null && block2.isM()) {
+					outgoingResponse = new StreamedResponse(outgoingResponse, new Block2Stream(outgoingRequest, response));
+				}
+				respond(exchange, outgoingResponse);
+			}
+
+			@Override
+			public void onTimeout() {
+				if (answered.compareAndSet(false, true)) {
+					LOGGER.warning("No response received.");
+					respond(exchange, new UpstreamTimeoutResponse());
+				}
+			}
+
+			@Override
+			public void onReject() {
+				if (answered.compareAndSet(false, true)) {
+					// the server is reachable, but did not process the request
+					LOGGER.warning("Request rejected by the coap server.");
+					respond(exchange, new Response(ResponseCode.BAD_GATEWAY));
+				}
+			}
+
+			@Override
+			public void onCancel() {
+				if (answered.compareAndSet(false, true)) {
+					LOGGER.warning("Request canceled before the response.");
+					respond(exchange, new Response(ResponseCode.INTERNAL_SERVER_ERROR));
+				}
+			}
+		});
+
+		try {
+			LOGGER.finer("Sending coap request.");
+			if (streaming) {
+				outgoingRequest.send(Block2Stream.getEndpoint());
+			} else {
+				outgoingRequest.send();
+			}
+		} catch (Exception e) {
+			LOGGER.warning("Failed to execute request: " + e.getMessage());
+			if (answered.compareAndSet(false, true)) {
+				respond(exchange, new Response(ResponseCode.INTERNAL_SERVER_ERROR));
+			}
+		}
+	}
+
+	@Override
+	public Response forwardRequest(Request request) {
+		if (LOGGER.isLoggable(Level.FINER)) {
+			LOGGER.finer("ProxyCoAP2CoAP forwards " + request);
+		}
 
 		// create a new request to forward to the requested coap server
 		Request outgoingRequest = null;
+		long start;
 		try {
 			// create the new request from the original
-			outgoingRequest = CoapTranslator.getRequest(incomingRequest);
-
-//			// enable response queue for blocking I/O
-//			outgoingRequest.enableResponseQueue(true);
-
-			// get the token from the manager // TODO: necessary?
-//			outgoingRequest.setToken(TokenManager.getInstance().acquireToken());
+			outgoingRequest = getOutgoingRequest(request);
+			if (outgoingRequest == null) {
+				return new Response(ResponseCode.BAD_OPTION);
+			}
 
 			// execute the request
 			LOGGER.finer("Sending coap request.");
-//			outgoingRequest.execute();
-			LOGGER.info("ProxyCoapClient received CoAP request and sends a copy to CoAP target");
+			start = System.nanoTime();
 			outgoingRequest.send();
 
 			// accept the request sending a separate response to avoid the
@@ -90,6 +186,7 @@ public class ProxyCoapClientResource extends ForwardingResource {
 
 			if (receivedResponse != null) {
 				LOGGER.finer("Coap response received.");
+				LatencyStats.getStandard().recordUpstream(getHost(outgoingRequest), start);
 
 				// create the real response for the original request
 				Response outgoingResponse = CoapTranslator.getResponse(receivedResponse);
@@ -97,11 +194,164 @@ public class ProxyCoapClientResource extends ForwardingResource {
 				return outgoingResponse;
 			} else {
 				LOGGER.warning("No response received.");
-				return new Response(CoapTranslator.STATUS_TIMEOUT);
+				return new UpstreamTimeoutResponse();
 			}
 		} catch (InterruptedException e) {
 			LOGGER.warning("Receiving of response interrupted: " + e.getMessage());
 			return new Response(ResponseCode.INTERNAL_SERVER_ERROR);
 		}
 	}
+
+	/**
+	 * Observes the coap resource of the proxy-uri of a request. Every
+	 * notification is given to the handler, as well as the final response
+	 * without observe option, which ends the observation. The handler is then
+	 * told how the observation has ended, see {@link EndReason}.
+	 * 
+	 * @param request
+	 *            the request, with the proxy-uri of the resource
+	 * @param handler
+	 *            the handler of the notifications
+	 * @return the outgoing request, to be canceled to end the observation, or
+	 *         null if it cannot be sent
+	 */
+	public Request observe(Request request, final NotificationHandler handler) {
+		final Request outgoingRequest;
+		try {
+			outgoingRequest = getOutgoingRequest(request);
+		} catch (TranslationException e) {
+			LOGGER.warning("Proxy-uri option malformed: " + e.getMessage());
+			return null;
+		} catch (RuntimeException e) {
+			// e.g., an unknown host, the caller is serving a client
+			LOGGER.warning("Cannot observe the proxy-uri: " + e.getMessage());
+			return null;
+		}
+		if (outgoingRequest == null) {
+			return null;
+		}
+		outgoingRequest.setObserve();
+
+		outgoingRequest.addMessageObserver(new MessageObserverAdapter() {
+
+			// set once the server has registered the observation
+			private volatile boolean registered;
+
+			@Override
+			public void onResponse(Response response) {
+				LOGGER.finer("Coap notification received.");
+				handler.onNotification(CoapTranslator.getResponse(response));
+				if (response.getOptions().hasObserve()) {
+					registered = true;
+				} else if (!registered && ResponseCode.isSuccess(response.getCode())) {
+					// the resource is served, but not observed
+					handler.onEnd(EndReason.NOT_OBSERVABLE);
+				} else {
+					// e.g., a 4.04 response once the resource is deleted
+					handler.onEnd(EndReason.ENDED);
+				}
+			}
+
+			@Override
+			public void onTimeout() {
+				LOGGER.warning("No notification received.");
+				handler.onEnd(EndReason.ENDED);
+			}
+
+			@Override
+			public void onReject() {
+				LOGGER.warning("Observation rejected by the coap server.");
+				handler.onEnd(EndReason.ENDED);
+			}
+
+			@Override
+			public void onCancel() {
+				LOGGER.finer("Observation canceled.");
+				handler.onEnd(EndReason.CANCELED);
+			}
+		});
+
+		try {
+			LOGGER.finer("Sending coap observe request.");
+			outgoingRequest.send();
+		} catch (Exception e) {
+			LOGGER.warning("Failed to execute observe request: " + e.getMessage());
+			return null;
+		}
+		return outgoingRequest;
+	}
+
+	/**
+	 * Receives the notifications of an observation started with
+	 * {@link ProxyCoapClientResource#observe}.
+	 */
+	public interface NotificationHandler {
+
+		/**
+		 * @param response
+		 *            the notification, translated for the proxy
+		 */
+		public void onNotification(Response response);
+
+		/**
+		 * The observation has ended, no notification follows.
+		 * 
+		 * @param reason
+		 *            how the observation has ended
+		 */
+		public void onEnd(EndReason reason);
+	}
+
+	/**
+	 * How an observation has ended.
+	 */
+	public enum EndReason {
+		/** The server answered without registering the observation. */
+		NOT_OBSERVABLE,
+		/**
+		 * The server ended the observation with a final response, or stopped
+		 * answering.
+		 */
+		ENDED,
+		/** The outgoing request has been canceled by the proxy. */
+		CANCELED
+	}
+
+	/**
+	 * @return the address and port of the server, as key of the latencies
+	 */
+	private static String getHost(Request outgoingRequest) {
+		return outgoingRequest.getDestination().getHostAddress() + ":" + outgoingRequest.getDestinationPort();
+	}
+
+	/**
+	 * Creates the request to forward to the coap server indicated by the
+	 * proxy-uri option of the incoming request.
+	 * 
+	 * @param incomingRequest
+	 *            the incoming request
+	 * @return the outgoing request or null if the proxy-uri is not set
+	 * @throws TranslationException
+	 *             if the proxy-uri option is malformed
+	 */
+	private Request getOutgoingRequest(Request incomingRequest) throws TranslationException {
+		// check the invariant: the request must have the proxy-uri set
+		if (!incomingRequest.getOptions().hasProxyUri()) {
+			LOGGER.warning("Proxy-uri option not set.");
+			return null;
+		}
+
+		// remove the fake uri-path
+		// FIXME: HACK // TODO: why? still necessary in new Cf?
+		incomingRequest.getOptions().clearUriPath();
+
+		// create the new request from the original, conditional on the etag
+		// of the cached response it revalidates, if any
+		Request outgoingRequest = CoapTranslator.getRequest(incomingRequest);
+		byte[] validator = ProxyCacheResource.getValidator(incomingRequest);
+		if (validator != null) {
+			outgoingRequest.getOptions().addETag(validator);
+		}
+		return outgoingRequest;
+	}
 }
@@ -22,6 +22,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
+import java.util.Collections;
 
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.Request;
@@ -29,6 +30,7 @@ import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.proxy.CoapTranslator;
 import org.eclipse.californium.proxy.HttpTranslator;
 import org.eclipse.californium.proxy.InvalidFieldException;
+import org.eclipse.californium.proxy.LatencyStats;
 import org.eclipse.californium.proxy.TranslationException;
 
 import cz.msebera.android.httpclient.HttpHost;
@@ -136,6 +138,12 @@ public class ProxyHttpClientResource extends ForwardingResource {
 		try {
 			// get the mapping to http for the incoming coap request
 			httpRequest = HttpTranslator.getHttpRequest(incomingCoapRequest);
+			// conditional on the etag of the cached response it revalidates
+			byte[] validator = ProxyCacheResource.getValidator(incomingCoapRequest);
+			if (validator != null) {
+				httpRequest.setHeader("If-None-Match",
+						HttpTranslator.getIfNoneMatch(Collections.singletonList(validator)));
+			}
 			LOGGER.finer("Outgoing http request: " + httpRequest.getRequestLine());
 		} catch (InvalidFieldException e) {
 			LOGGER.warning("Problems during the http/coap translation: " + e.getMessage());
@@ -175,7 +183,9 @@ public class ProxyHttpClientResource extends ForwardingResource {
 		Response coapResponse = null;
 		try {
 			// execute the request
+			long start = System.nanoTime();
 			coapResponse = HTTP_CLIENT.execute(httpHost, httpRequest, httpResponseHandler, null);
+			LatencyStats.getStandard().recordUpstream(httpHost.toHostString(), start);
 		} catch (IOException e) {
 			LOGGER.warning("Failed to get the http response: " + e.getMessage());
 			return new Response(ResponseCode.INTERNAL_SERVER_ERROR);
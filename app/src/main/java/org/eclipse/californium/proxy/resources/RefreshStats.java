@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy.resources;
+
+
+/**
+ * Snapshot of the counters of the refreshes of the cache, immutable like
+ * {@link com.google.common.cache.CacheStats}.
+ */
+public final class RefreshStats {
+
+	private final long refreshAheadCount;
+	private final long staleHitCount;
+	private final long staleMissCount;
+	private final long staleIfErrorHitCount;
+	private final long staleIfErrorMissCount;
+
+	public RefreshStats(long refreshAheadCount, long staleHitCount, long staleMissCount,
+			long staleIfErrorHitCount, long staleIfErrorMissCount) {
+		this.refreshAheadCount = refreshAheadCount;
+		this.staleHitCount = staleHitCount;
+		this.staleMissCount = staleMissCount;
+		this.staleIfErrorHitCount = staleIfErrorHitCount;
+		this.staleIfErrorMissCount = staleIfErrorMissCount;
+	}
+
+	/**
+	 * @return the number of fresh responses refreshed before their expiration
+	 */
+	public long refreshAheadCount() {
+		return refreshAheadCount;
+	}
+
+	/**
+	 * @return the number of stale responses served while being refreshed
+	 */
+	public long staleHitCount() {
+		return staleHitCount;
+	}
+
+	/**
+	 * @return the number of stale responses too old to be served while being
+	 *         refreshed
+	 */
+	public long staleMissCount() {
+		return staleMissCount;
+	}
+
+	/**
+	 * @return the number of stale responses served instead of a server error
+	 */
+	public long staleIfErrorHitCount() {
+		return staleIfErrorHitCount;
+	}
+
+	/**
+	 * @return the number of server errors forwarded for lack of a response
+	 *         recent enough
+	 */
+	public long staleIfErrorMissCount() {
+		return staleIfErrorMissCount;
+	}
+
+	/**
+	 * @param other
+	 *            the counters at an earlier time
+	 * @return the counters since then
+	 */
+	public RefreshStats minus(RefreshStats other) {
+		return new RefreshStats(refreshAheadCount - other.refreshAheadCount, staleHitCount - other.staleHitCount,
+				staleMissCount - other.staleMissCount, staleIfErrorHitCount - other.staleIfErrorHitCount,
+				staleIfErrorMissCount - other.staleIfErrorMissCount);
+	}
+}
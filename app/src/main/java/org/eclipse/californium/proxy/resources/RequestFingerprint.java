@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy.resources;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.eclipse.californium.core.coap.Request;
+
+
+/**
+ * The parts of a request that identify its cached responses: the canonical
+ * form of its proxy-uri and a digest of its payload. They are computed once
+ * per request and kept in its user context.
+ * <p>
+ * The canonical uri has the scheme and the host in lower case, no default
+ * port, at least the root path, no fragment, and the query parameters
+ * sorted, so that the equivalent uris find the same responses.
+ */
+final class RequestFingerprint {
+
+	private static final String URI_KEY = "proxy.cache.uri";
+	private static final String DIGEST_KEY = "proxy.cache.digest";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private RequestFingerprint() {
+	}
+
+	/**
+	 * @param request
+	 *            the request
+	 * @return the canonical proxy-uri of the request
+	 */
+	static String getUri(Request request) {
+		Map<String, String> context = request.getUserContext();
+		if (context == null || !context.containsKey(URI_KEY)) {
+			context = compute(request);
+		}
+		return context.get(URI_KEY);
+	}
+
+	/**
+	 * @param request
+	 *            the request
+	 * @return the digest of the payload of the request in hexadecimal, empty
+	 *         if the request has no payload
+	 */
+	static String getPayloadDigest(Request request) {
+		Map<String, String> context = request.getUserContext();
+		if (context == null || !context.containsKey(DIGEST_KEY)) {
+			context = compute(request);
+		}
+		return context.get(DIGEST_KEY);
+	}
+
+	/**
+	 * @param request
+	 *            the request
+	 * @return true, if the request has already been looked up in a cache
+	 */
+	static boolean isComputed(Request request) {
+		Map<String, String> context = request.getUserContext();
+		return context != null && context.containsKey(URI_KEY);
+	}
+
+	/**
+	 * Canonicalizes a uri. A uri that cannot be parsed is returned as it is.
+	 *
+	 * @param uri
+	 *            the uri
+	 * @return the canonical uri
+	 */
+	static String canonicalize(String uri) {
+		if (uri == null) {
+			return "";
+		}
+		URI parsed;
+		try {
+			parsed = new URI(uri).normalize();
+		} catch (URISyntaxException e) {
+			return uri;
+		}
+		if (parsed.isOpaque() || parsed.getScheme() == null || parsed.getHost() == null) {
+			return uri;
+		}
+
+		String scheme = parsed.getScheme().toLowerCase(Locale.ENGLISH);
+		StringBuilder builder = new StringBuilder(uri.length());
+		builder.append(scheme).append("://");
+		if (parsed.getRawUserInfo() != null) {
+			builder.append(parsed.getRawUserInfo()).append('@');
+		}
+		builder.append(parsed.getHost().toLowerCase(Locale.ENGLISH));
+		int port = parsed.getPort();
+		if (port != -1 && port != getDefaultPort(scheme)) {
+			builder.append(':').append(port);
+		}
+		String path = parsed.getRawPath();
+		builder.append(path == null || path.isEmpty() ? "/" : path);
+		String query = parsed.getRawQuery();
+		if (query != null && !query.isEmpty()) {
+			String[] parameters = query.split("&");
+			Arrays.sort(parameters);
+			builder.append('?').append(parameters[0]);
+			for (int i = 1; i < parameters.length; i++) {
+				builder.append('&').append(parameters[i]);
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * @param uri
+	 *            a canonical uri
+	 * @return the scheme and the authority of the uri, which identify the
+	 *         server
+	 */
+	static String getOrigin(String uri) {
+		int start = uri.indexOf("://");
+		if (start < 0) {
+			return uri;
+		}
+		int end = uri.indexOf('/', start + 3);
+		return end < 0 ? uri : uri.substring(0, end);
+	}
+
+	private static Map<String, String> compute(Request request) {
+		Map<String, String> context = new HashMap<String, String>();
+		if (request.getUserContext() != null) {
+			context.putAll(request.getUserContext());
+		}
+		context.put(URI_KEY, canonicalize(request.getOptions().getProxyUri()));
+		context.put(DIGEST_KEY, digest(request.getPayload()));
+		request.setUserContext(context);
+		return context;
+	}
+
+	private static String digest(byte[] payload) {
+		if (payload == null || payload.length == 0) {
+			return "";
+		}
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(payload);
+		} catch (NoSuchAlgorithmException e) {
+			// required on every platform
+			throw new IllegalStateException(e);
+		}
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+			hex[2 * i + 1] = HEX[digest[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	private static int getDefaultPort(String scheme) {
+		if ("coap".equals(scheme)) {
+			return 5683;
+		} else if ("coaps".equals(scheme)) {
+			return 5684;
+		} else if ("http".equals(scheme)) {
+			return 80;
+		} else if ("https".equals(scheme)) {
+			return 443;
+		}
+		return -1;
+	}
+}
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -32,6 +33,9 @@ import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.proxy.HttpStack;
+import org.eclipse.californium.proxy.LatencyHistogram;
+import org.eclipse.californium.proxy.LatencyStats;
 
 import com.google.common.cache.CacheStats;
 import com.google.common.collect.HashBasedTable;
@@ -59,6 +63,17 @@ public class StatsResource extends CoapResource {
 		// add the sub-resource to show stats
 		add(new CacheStatResource("cache", cacheResource));
 		add(new ProxyStatResource("proxy"));
+		add(new LatencyStatResource("latency"));
+	}
+
+	/**
+	 * Adds the sub-resource showing the gateway timeouts fired by the http
+	 * stack for each upstream host.
+	 * 
+	 * @param httpStack
+	 */
+	public void addTimeoutStats(HttpStack httpStack) {
+		add(new TimeoutStatResource("timeouts", httpStack));
 	}
 
 	public void updateStatistics(Request request, boolean cachedResponse) {
@@ -136,6 +151,7 @@ public class StatsResource extends CoapResource {
 
 	private static final class CacheStatResource extends CoapResource {
 		private CacheStats relativeCacheStats;
+		private RefreshStats relativeRefreshStats;
 		private final CacheResource cacheResource;
 
 		private static final long DEFAULT_LOGGING_DELAY = 5;
@@ -153,6 +169,7 @@ public class StatsResource extends CoapResource {
 
 			this.cacheResource = cacheResource;
 			relativeCacheStats = cacheResource.getCacheStats();
+			relativeRefreshStats = cacheResource.getRefreshStats();
 		}
 
 		/**
@@ -170,6 +187,11 @@ public class StatsResource extends CoapResource {
 			stringBuilder.append(String.format("Average time spent loading new values (nanoseconds): %.3f %n", cacheStats.averageLoadPenalty()));
 			stringBuilder.append(String.format("Number of cache evictions: %d %n", cacheStats.evictionCount()));
 
+			RefreshStats refreshStats = cacheResource.getRefreshStats().minus(relativeRefreshStats);
+			stringBuilder.append(String.format("Refreshes ahead of expiration: %d %n", refreshStats.refreshAheadCount()));
+			stringBuilder.append(String.format("Stale while revalidate hits/misses: %d/%d %n", refreshStats.staleHitCount(), refreshStats.staleMissCount()));
+			stringBuilder.append(String.format("Stale if error hits/misses: %d/%d %n", refreshStats.staleIfErrorHitCount(), refreshStats.staleIfErrorMissCount()));
+
 			return stringBuilder.toString();
 		}
 
@@ -177,6 +199,7 @@ public class StatsResource extends CoapResource {
 		public void handleDELETE(CoapExchange exchange) {
 			// reset the cache
 			relativeCacheStats = cacheResource.getCacheStats().minus(relativeCacheStats);
+			relativeRefreshStats = cacheResource.getRefreshStats();
 			exchange.respond(ResponseCode.DELETED);
 		}
 
@@ -256,6 +279,72 @@ public class StatsResource extends CoapResource {
 
 	}
 
+	private static final class TimeoutStatResource extends CoapResource {
+		private final HttpStack httpStack;
+
+		public TimeoutStatResource(String resourceIdentifier, HttpStack httpStack) {
+			super(resourceIdentifier);
+			this.httpStack = httpStack;
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			StringBuilder builder = new StringBuilder("Available commands:\n - GET: show gateway timeouts\n\n");
+			Map<String, Long> timeoutCounts = httpStack.getTimeoutCounts();
+			if (timeoutCounts.isEmpty()) {
+				builder.append("No gateway timeout occurred, yet.\n");
+			}
+			for (Map.Entry<String, Long> entry : timeoutCounts.entrySet()) {
+				builder.append(String.format("%s: %d\n", entry.getKey(), entry.getValue()));
+			}
+			Response response = new Response(ResponseCode.CONTENT);
+			response.setPayload(builder.toString());
+			response.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+			exchange.respond(response);
+		}
+	}
+
+	private static final class LatencyStatResource extends CoapResource {
+
+		public LatencyStatResource(String resourceIdentifier) {
+			super(resourceIdentifier);
+		}
+
+		@Override
+		public void handleDELETE(CoapExchange exchange) {
+			// reset the histograms
+			LatencyStats.getStandard().reset();
+			exchange.respond(ResponseCode.DELETED);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			StringBuilder builder = new StringBuilder("Available commands:\n - GET: show latencies (microseconds)\n - DELETE: reset statistics\n\n");
+			LatencyStats latencyStats = LatencyStats.getStandard();
+			for (LatencyStats.Stage stage : LatencyStats.Stage.values()) {
+				appendHistogram(builder, stage.name().toLowerCase(), latencyStats.getHistogram(stage));
+			}
+			builder.append("\nupstream hosts:\n");
+			Map<String, LatencyHistogram> hostHistograms = latencyStats.getHostHistograms();
+			if (hostHistograms.isEmpty()) {
+				builder.append("No request forwarded, yet.\n");
+			}
+			for (Map.Entry<String, LatencyHistogram> entry : hostHistograms.entrySet()) {
+				appendHistogram(builder, entry.getKey(), entry.getValue());
+			}
+			Response response = new Response(ResponseCode.CONTENT);
+			response.setPayload(builder.toString());
+			response.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+			exchange.respond(response);
+		}
+
+		private static void appendHistogram(StringBuilder builder, String name, LatencyHistogram histogram) {
+			builder.append(String.format("%s: count=%d p50=%d p99=%d p999=%d max=%d\n", name, histogram.getCount(),
+					histogram.getPercentile(0.5), histogram.getPercentile(0.99), histogram.getPercentile(0.999),
+					histogram.getMax()));
+		}
+	}
+
 	/**
 	 * The Class StatisticsHelper.
 	 */
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy.resources;
+
+
+/**
+ * The policy admitting a response in a full cache only if its resource has
+ * been requested often recently, so that a scan over resources read once does
+ * not evict the ones read again and again. The frequencies are estimated by a
+ * {@link FrequencySketch}, see TinyLFU (Einziger, Friedman and Manes).
+ */
+public class TinyLfuPolicy implements CachePolicy {
+
+	/**
+	 * The estimated number of recent requests from which a resource is
+	 * admitted in a full cache.
+	 */
+	private static final int ADMISSION_FREQUENCY = 2;
+
+	private final FrequencySketch sketch;
+
+	/**
+	 * @param expectedEntries
+	 *            the number of responses the cache is expected to hold
+	 */
+	public TinyLfuPolicy(int expectedEntries) {
+		this.sketch = new FrequencySketch(expectedEntries);
+	}
+
+	public void recordAccess(int keyHash) {
+		sketch.increment(keyHash);
+	}
+
+	public boolean admit(int keyHash, long fetchLatency, boolean full) {
+		return !full || sketch.frequency(keyHash) >= ADMISSION_FREQUENCY;
+	}
+
+	public int weigh(int size, long fetchLatency) {
+		return Math.max(1, size);
+	}
+}
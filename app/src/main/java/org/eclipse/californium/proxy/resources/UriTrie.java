@@ -0,0 +1,309 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ *    Martin Lanter - architect and re-implementation
+ *    Francesco Corazza - HTTP cross-proxy
+ ******************************************************************************/
+package org.eclipse.californium.proxy.resources;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * The canonical proxy-uris cached, in a trie of their segments: the origin,
+ * each segment of the path, and the query. The uris under a prefix are found
+ * by walking down to the prefix and collecting its subtree. A node is kept
+ * only while a uri ends in it or below it, so the cost of a removal is
+ * proportional to the number of uris removed.
+ * <p>
+ * The uris can also be tagged, and removed by tag. The instances are not
+ * thread-safe.
+ */
+final class UriTrie {
+
+	private final Node root = new Node(null, null);
+
+	/** The uris of each tag. */
+	private final Map<String, Set<String>> tags = new HashMap<String, Set<String>>();
+
+	private int size;
+
+	/**
+	 * @param uri
+	 *            a canonical uri
+	 */
+	void add(String uri) {
+		Node node = root;
+		for (String segment : split(uri)) {
+			Node child = node.children.get(segment);
+			if (child == null) {
+				child = new Node(node, segment);
+				node.children.put(segment, child);
+			}
+			node = child;
+		}
+		if (node.uri == null) {
+			node.uri = uri;
+			size++;
+		}
+	}
+
+	/**
+	 * @param uri
+	 *            a canonical uri
+	 */
+	void remove(String uri) {
+		Node node = find(split(uri));
+		if (node != null && node.uri != null) {
+			List<String> removed = new ArrayList<String>(1);
+			unset(node, removed);
+			prune(node);
+		}
+	}
+
+	/**
+	 * Tags a uri already added.
+	 *
+	 * @param uri
+	 *            a canonical uri
+	 * @param tag
+	 *            the tag
+	 */
+	void tag(String uri, String tag) {
+		Node node = find(split(uri));
+		if (node == null || node.uri == null) {
+			return;
+		}
+		if (node.tags == null) {
+			node.tags = new HashSet<String>();
+		}
+		if (node.tags.add(tag)) {
+			Set<String> uris = tags.get(tag);
+			if (uris == null) {
+				uris = new HashSet<String>();
+				tags.put(tag, uris);
+			}
+			uris.add(uri);
+		}
+	}
+
+	/**
+	 * Removes the uris starting with a prefix of whole segments, e.g.,
+	 * coap://host/sensors removes coap://host/sensors and
+	 * coap://host/sensors/temperature, but not coap://host/sensorsX.
+	 *
+	 * @param prefix
+	 *            a canonical uri
+	 * @return the uris removed
+	 */
+	List<String> removePrefix(String prefix) {
+		List<String> segments = split(prefix);
+		// a trailing slash only ends the prefix
+		if (segments.size() > 1 && segments.get(segments.size() - 1).isEmpty()) {
+			segments.remove(segments.size() - 1);
+		}
+		List<String> removed = new ArrayList<String>();
+		Node node = find(segments);
+		if (node != null) {
+			collect(node, removed);
+			detach(node);
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes the uris of a host, whatever their scheme and port.
+	 *
+	 * @param host
+	 *            the host name or address
+	 * @return the uris removed
+	 */
+	List<String> removeHost(String host) {
+		host = host.toLowerCase(Locale.ENGLISH);
+		List<String> removed = new ArrayList<String>();
+		Iterator<Node> origins = root.children.values().iterator();
+		while (origins.hasNext()) {
+			Node origin = origins.next();
+			if (host.equals(getHost(origin.segment))) {
+				collect(origin, removed);
+				origins.remove();
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes the uris with a tag.
+	 *
+	 * @param tag
+	 *            the tag
+	 * @return the uris removed
+	 */
+	List<String> removeTag(String tag) {
+		Set<String> uris = tags.get(tag);
+		if (uris == null) {
+			return new ArrayList<String>(0);
+		}
+		List<String> removed = new ArrayList<String>(uris.size());
+		for (String uri : new ArrayList<String>(uris)) {
+			Node node = find(split(uri));
+			if (node != null && node.uri != null) {
+				unset(node, removed);
+				prune(node);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes all the uris.
+	 */
+	void clear() {
+		root.children.clear();
+		tags.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return the number of uris
+	 */
+	int size() {
+		return size;
+	}
+
+	private Node find(List<String> segments) {
+		Node node = root;
+		for (String segment : segments) {
+			node = node.children.get(segment);
+			if (node == null) {
+				return null;
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Removes the uris of a subtree, which the caller detaches.
+	 */
+	private void collect(Node node, List<String> removed) {
+		if (node.uri != null) {
+			unset(node, removed);
+		}
+		for (Node child : node.children.values()) {
+			collect(child, removed);
+		}
+	}
+
+	private void unset(Node node, List<String> removed) {
+		removed.add(node.uri);
+		if (node.tags != null) {
+			for (String tag : node.tags) {
+				Set<String> uris = tags.get(tag);
+				uris.remove(node.uri);
+				if (uris.isEmpty()) {
+					tags.remove(tag);
+				}
+			}
+			node.tags = null;
+		}
+		node.uri = null;
+		size--;
+	}
+
+	private void detach(Node node) {
+		if (node == root) {
+			root.children.clear();
+		} else {
+			node.parent.children.remove(node.segment);
+			prune(node.parent);
+		}
+	}
+
+	/**
+	 * Removes the nodes left without uri up to the root.
+	 */
+	private void prune(Node node) {
+		while (node != root && node.uri == null && node.children.isEmpty()) {
+			node.parent.children.remove(node.segment);
+			node = node.parent;
+		}
+	}
+
+	/**
+	 * Splits a canonical uri in its origin, the segments of its path, and its
+	 * query if any. A uri that is not absolute is a single segment.
+	 */
+	private static List<String> split(String uri) {
+		List<String> segments = new ArrayList<String>();
+		int start = uri.indexOf("://");
+		int path = start < 0 ? -1 : uri.indexOf('/', start + 3);
+		if (path < 0) {
+			segments.add(uri);
+			return segments;
+		}
+		segments.add(uri.substring(0, path));
+		int query = uri.indexOf('?', path);
+		String rawPath = query < 0 ? uri.substring(path + 1) : uri.substring(path + 1, query);
+		for (String segment : rawPath.split("/", -1)) {
+			segments.add(segment);
+		}
+		if (query >= 0) {
+			segments.add(uri.substring(query));
+		}
+		return segments;
+	}
+
+	/**
+	 * @param origin
+	 *            the scheme and the authority of a uri
+	 * @return the host of the origin
+	 */
+	private static String getHost(String origin) {
+		int start = origin.indexOf("://");
+		String authority = start < 0 ? origin : origin.substring(start + 3);
+		int userInfo = authority.lastIndexOf('@');
+		if (userInfo >= 0) {
+			authority = authority.substring(userInfo + 1);
+		}
+		if (authority.startsWith("[")) {
+			// an IPv6 address
+			int end = authority.indexOf(']');
+			return end < 0 ? authority : authority.substring(0, end + 1);
+		}
+		int port = authority.indexOf(':');
+		return port < 0 ? authority : authority.substring(0, port);
+	}
+
+	private static final class Node {
+		private final Node parent;
+		private final String segment;
+		private final Map<String, Node> children = new HashMap<String, Node>();
+		/** The uri ending in this node, null if none. */
+		private String uri;
+		/** The tags of the uri, null if none. */
+		private Set<String> tags;
+
+		Node(Node parent, String segment) {
+			this.parent = parent;
+			this.segment = segment;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package org.eclipse.californium.proxy.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the second tier of the response cache.
+ */
+public class DiskCacheTest {
+
+	private static final int CAPACITY = 64 * 1024;
+	private static final int MAX_ENTRY_SIZE = 4096;
+
+	private File file;
+	private DiskCache cache;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("disk-cache", ".bin");
+		// an empty file is initialized by the cache
+		file.delete();
+		cache = new DiskCache(file, CAPACITY, MAX_ENTRY_SIZE);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		cache.close();
+		file.delete();
+		new File(file.getPath() + ".tmp").delete();
+	}
+
+	@Test
+	public void put_get_remove() throws Exception {
+		cache.put(key("a"), response(1, 100), expiration(60000));
+
+		assertArrayEquals(data(1, 100), get("a").getData());
+		assertNull(get("b"));
+
+		cache.remove(key("a"));
+
+		assertNull(get("a"));
+		assertEquals(0, cache.getKeys().size());
+	}
+
+	@Test
+	public void put_replaces_previous_response() throws Exception {
+		cache.put(key("a"), response(1, 100), expiration(60000));
+		cache.put(key("a"), response(2, 200), expiration(60000));
+
+		assertArrayEquals(data(2, 200), get("a").getData());
+		assertEquals(1, cache.getKeys().size());
+	}
+
+	@Test
+	public void get_keeps_remaining_max_age() throws Exception {
+		cache.put(key("a"), response(1, 100), expiration(60000));
+
+		long maxAge = get("a").getMaxAge();
+
+		assertTrue("max-age " + maxAge, maxAge > 50 && maxAge <= 60);
+	}
+
+	@Test
+	public void get_drops_expired_response() throws Exception {
+		cache.put(key("a"), response(1, 100), expiration(-1000));
+
+		assertNull(get("a"));
+		assertEquals(0, cache.getKeys().size());
+	}
+
+	@Test
+	public void put_ignores_too_large_response() throws Exception {
+		cache.put(key("a"), response(1, MAX_ENTRY_SIZE), expiration(60000));
+
+		assertNull(get("a"));
+	}
+
+	@Test
+	public void reopen_reloads_responses() throws Exception {
+		cache.put(key("a"), response(1, 100), expiration(60000));
+		cache.put(key("b"), response(2, 100), expiration(60000));
+		cache.put(key("b"), response(3, 100), expiration(60000));
+		cache.put(key("c"), response(4, 100), expiration(60000));
+		cache.remove(key("c"));
+
+		reopen();
+
+		assertArrayEquals(data(1, 100), get("a").getData());
+		assertArrayEquals(data(3, 100), get("b").getData());
+		assertNull(get("c"));
+		assertEquals(2, cache.getKeys().size());
+	}
+
+	@Test
+	public void reopen_ignores_unknown_file() throws Exception {
+		cache.put(key("a"), response(1, 100), expiration(60000));
+		cache.close();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.writeInt(0);
+		} finally {
+			raf.close();
+		}
+
+		cache = new DiskCache(file, CAPACITY, MAX_ENTRY_SIZE);
+
+		assertNull(get("a"));
+		assertEquals(0, cache.getKeys().size());
+	}
+
+	@Test
+	public void compaction_drops_replaced_responses() throws Exception {
+		// ten times the capacity of the file
+		for (int i = 0; i < 200; i++) {
+			cache.put(key("a"), response(i, 3000), expiration(60000));
+			cache.put(key("b"), response(i + 1, 100), expiration(60000));
+		}
+
+		assertArrayEquals(data(199, 3000), get("a").getData());
+		assertArrayEquals(data(200, 100), get("b").getData());
+
+		reopen();
+
+		assertArrayEquals(data(199, 3000), get("a").getData());
+		assertArrayEquals(data(200, 100), get("b").getData());
+		assertEquals(2, cache.getKeys().size());
+	}
+
+	@Test
+	public void compaction_drops_expired_responses() throws Exception {
+		// fills the file with responses never read again
+		for (int i = 0; i < 100; i++) {
+			cache.put(key("old" + i), response(i, 600), expiration(200));
+		}
+		Thread.sleep(300);
+
+		for (int i = 0; i < 10; i++) {
+			cache.put(key("new" + i), response(i, 600), expiration(60000));
+			assertNotNull("response " + i, get("new" + i));
+		}
+		assertEquals(10, cache.getKeys().size());
+	}
+
+	private void reopen() throws IOException {
+		cache.close();
+		cache = new DiskCache(file, CAPACITY, MAX_ENTRY_SIZE);
+	}
+
+	private CachedResponse get(String key) {
+		return cache.get(key(key), System.nanoTime());
+	}
+
+	private static byte[] key(String key) {
+		return key.getBytes();
+	}
+
+	private static long expiration(long delay) {
+		return System.currentTimeMillis() + delay;
+	}
+
+	private static CachedResponse response(int value, int length) {
+		return CachedResponse.fromData(data(value, length), 0, System.nanoTime());
+	}
+
+	private static byte[] data(int value, int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (value + i);
+		}
+		return data;
+	}
+}
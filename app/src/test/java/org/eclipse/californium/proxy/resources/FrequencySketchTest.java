@@ -0,0 +1,103 @@
+package org.eclipse.californium.proxy.resources;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the frequency estimates of the admission policy.
+ */
+public class FrequencySketchTest {
+
+	/** 32 longs of 16 counters for 16 expected items. */
+	private static final int SAMPLE_SIZE = 10 * 32;
+
+	private final FrequencySketch sketch = new FrequencySketch(16);
+
+	@Test
+	public void frequency_of_unknown_item_is_zero() throws Exception {
+		for (int hash = 0; hash < 100; hash++) {
+			assertEquals(0, sketch.frequency(hash));
+		}
+	}
+
+	@Test
+	public void increment_counts_occurrences() throws Exception {
+		for (int i = 1; i <= 10; i++) {
+			sketch.increment("coap://host/a".hashCode());
+			assertEquals(i, sketch.frequency("coap://host/a".hashCode()));
+		}
+	}
+
+	@Test
+	public void increment_saturates() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			sketch.increment(42);
+		}
+		assertEquals(15, sketch.frequency(42));
+	}
+
+	@Test
+	public void frequency_never_underestimates() throws Exception {
+		for (int hash = 0; hash < 16; hash++) {
+			for (int i = 0; i <= hash % 8; i++) {
+				sketch.increment(hash);
+			}
+		}
+		for (int hash = 0; hash < 16; hash++) {
+			int frequency = sketch.frequency(hash);
+			assertTrue("frequency " + frequency + " of " + hash, frequency >= hash % 8 + 1);
+		}
+	}
+
+	@Test
+	public void reset_halves_counters() throws Exception {
+		int frequent = -1;
+		int rare = -2;
+		for (int i = 0; i < 14; i++) {
+			sketch.increment(frequent);
+		}
+		sketch.increment(rare);
+		assertTrue(sketch.frequency(frequent) >= 14);
+
+		// other items, each recorded once, until the counters are halved
+		int additions = 15;
+		int hash = 0;
+		while (sketch.frequency(frequent) >= 14) {
+			assertTrue("no reset after " + additions + " additions", additions < 2 * SAMPLE_SIZE);
+			sketch.increment(hash++);
+			additions++;
+		}
+
+		assertTrue("reset after " + additions + " additions", additions >= SAMPLE_SIZE);
+		// each counter of the frequent item was 14 or 15
+		assertEquals(7, sketch.frequency(frequent));
+		assertTrue(sketch.frequency(rare) <= 1);
+	}
+
+	@Test
+	public void reset_keeps_half_of_sample() throws Exception {
+		int frequent = -1;
+		int hash = 0;
+		for (int i = 0; i < 14; i++) {
+			sketch.increment(frequent);
+		}
+		while (sketch.frequency(frequent) >= 14) {
+			sketch.increment(hash++);
+		}
+
+		// half of the sample is counted as already recorded
+		for (int i = 0; i < 7; i++) {
+			sketch.increment(frequent);
+		}
+		int additions = 7;
+		while (sketch.frequency(frequent) >= 14) {
+			assertTrue("no reset after " + additions + " additions", additions < SAMPLE_SIZE);
+			sketch.increment(hash++);
+			additions++;
+		}
+
+		assertTrue("reset after " + additions + " additions", additions >= SAMPLE_SIZE / 2);
+		assertEquals(7, sketch.frequency(frequent));
+	}
+}
@@ -0,0 +1,101 @@
+package org.eclipse.californium.proxy.resources;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.Request;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the canonical proxy-uris and payload digests of the cache keys.
+ */
+public class RequestFingerprintTest {
+
+	@Test
+	public void canonicalize_drops_default_ports() throws Exception {
+		assertEquals("coap://host/a", RequestFingerprint.canonicalize("coap://host:5683/a"));
+		assertEquals("coaps://host/a", RequestFingerprint.canonicalize("coaps://host:5684/a"));
+		assertEquals("http://host/a", RequestFingerprint.canonicalize("http://host:80/a"));
+		assertEquals("https://host/a", RequestFingerprint.canonicalize("https://host:443/a"));
+	}
+
+	@Test
+	public void canonicalize_keeps_other_ports() throws Exception {
+		assertEquals("coap://host:5684/a", RequestFingerprint.canonicalize("coap://host:5684/a"));
+		assertEquals("coaps://host:5683/a", RequestFingerprint.canonicalize("coaps://host:5683/a"));
+		assertEquals("foo://host:5683/a", RequestFingerprint.canonicalize("foo://host:5683/a"));
+	}
+
+	@Test
+	public void canonicalize_lowers_scheme_and_host() throws Exception {
+		assertEquals("coap://host.example.com/Path", RequestFingerprint.canonicalize("COAP://Host.EXAMPLE.com/Path"));
+		assertEquals("coap://[fe80::1]/a", RequestFingerprint.canonicalize("coap://[FE80::1]:5683/a"));
+	}
+
+	@Test
+	public void canonicalize_keeps_user_info() throws Exception {
+		assertEquals("coap://User@host/a", RequestFingerprint.canonicalize("coap://User@HOST/a"));
+	}
+
+	@Test
+	public void canonicalize_removes_dot_segments() throws Exception {
+		assertEquals("coap://host/a/c", RequestFingerprint.canonicalize("coap://host/a/./b/../c"));
+		assertEquals("coap://host/a/", RequestFingerprint.canonicalize("coap://host/a/b/.."));
+	}
+
+	@Test
+	public void canonicalize_adds_empty_path() throws Exception {
+		assertEquals("coap://host/", RequestFingerprint.canonicalize("coap://host"));
+		assertEquals("coap://host/?a=1", RequestFingerprint.canonicalize("coap://host?a=1"));
+	}
+
+	@Test
+	public void canonicalize_sorts_query_parameters() throws Exception {
+		assertEquals("coap://host/a?a=1&b=2&c", RequestFingerprint.canonicalize("coap://host/a?c&b=2&a=1"));
+		assertEquals(RequestFingerprint.canonicalize("coap://host/a?x=1&y=2"),
+				RequestFingerprint.canonicalize("coap://host/a?y=2&x=1"));
+		// the order of the values of a repeated parameter is not kept
+		assertEquals("coap://host/a?x=1&x=2", RequestFingerprint.canonicalize("coap://host/a?x=2&x=1"));
+	}
+
+	@Test
+	public void canonicalize_drops_empty_query() throws Exception {
+		assertEquals("coap://host/a", RequestFingerprint.canonicalize("coap://host/a?"));
+	}
+
+	@Test
+	public void canonicalize_keeps_escapes() throws Exception {
+		assertEquals("coap://host/a%20b?q=%26", RequestFingerprint.canonicalize("coap://host/a%20b?q=%26"));
+	}
+
+	@Test
+	public void canonicalize_returns_unparsable_uri() throws Exception {
+		assertEquals("", RequestFingerprint.canonicalize(null));
+		assertEquals("coap://host/a b", RequestFingerprint.canonicalize("coap://host/a b"));
+		assertEquals("/relative/path", RequestFingerprint.canonicalize("/relative/path"));
+		assertEquals("mailto:user@host", RequestFingerprint.canonicalize("mailto:user@host"));
+	}
+
+	@Test
+	public void get_uri_of_request() throws Exception {
+		Request request = new Request(Code.GET);
+		request.getOptions().setProxyUri("coap://HOST:5683/a/../b?y&x");
+
+		assertEquals("coap://host/b?x&y", RequestFingerprint.getUri(request));
+	}
+
+	@Test
+	public void get_payload_digest_of_request() throws Exception {
+		Request request = new Request(Code.POST);
+		request.getOptions().setProxyUri("coap://host/a");
+
+		assertEquals("", RequestFingerprint.getPayloadDigest(request));
+
+		request = new Request(Code.POST);
+		request.getOptions().setProxyUri("coap://host/a");
+		request.setPayload("abc");
+
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+				RequestFingerprint.getPayloadDigest(request));
+	}
+}
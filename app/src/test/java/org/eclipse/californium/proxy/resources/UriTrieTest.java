@@ -0,0 +1,183 @@
+package org.eclipse.californium.proxy.resources;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the trie of the cached proxy-uris.
+ */
+public class UriTrieTest {
+
+	private final UriTrie trie = new UriTrie();
+
+	@Test
+	public void add_counts_each_uri_once() throws Exception {
+		trie.add("coap://host/a");
+		trie.add("coap://host/a");
+		trie.add("coap://host/a/b");
+
+		assertEquals(2, trie.size());
+	}
+
+	@Test
+	public void remove_keeps_other_uris() throws Exception {
+		add("coap://host/a", "coap://host/a/b", "coap://host/a?x=1");
+
+		trie.remove("coap://host/a");
+
+		assertEquals(2, trie.size());
+		assertEquals(set("coap://host/a/b", "coap://host/a?x=1"), set(trie.removePrefix("coap://host/a")));
+	}
+
+	@Test
+	public void remove_ignores_inner_segment() throws Exception {
+		add("coap://host/a/b/c");
+
+		trie.remove("coap://host/a/b");
+		trie.remove("coap://other/a");
+
+		assertEquals(1, trie.size());
+	}
+
+	@Test
+	public void remove_prefix_of_whole_segments() throws Exception {
+		add("coap://host/sensors", "coap://host/sensors/temperature", "coap://host/sensors/temperature?unit=c",
+				"coap://host/sensorsX", "coap://other/sensors");
+
+		List<String> removed = trie.removePrefix("coap://host/sensors");
+
+		assertEquals(set("coap://host/sensors", "coap://host/sensors/temperature",
+				"coap://host/sensors/temperature?unit=c"), set(removed));
+		assertEquals(2, trie.size());
+	}
+
+	@Test
+	public void remove_prefix_with_trailing_slash() throws Exception {
+		add("coap://host/sensors", "coap://host/sensors/temperature", "coap://host/sensorsX");
+
+		List<String> removed = trie.removePrefix("coap://host/sensors/");
+
+		assertEquals(set("coap://host/sensors", "coap://host/sensors/temperature"), set(removed));
+		assertEquals(1, trie.size());
+	}
+
+	@Test
+	public void remove_prefix_of_origin() throws Exception {
+		add("coap://host/", "coap://host/a", "coap://host/a/b", "coap://host:5684/a");
+
+		assertEquals(3, trie.removePrefix("coap://host/").size());
+		assertEquals(set("coap://host:5684/a"), set(trie.removePrefix("coap://host:5684")));
+		assertEquals(0, trie.size());
+	}
+
+	@Test
+	public void remove_prefix_unknown() throws Exception {
+		add("coap://host/a");
+
+		assertTrue(trie.removePrefix("coap://host/b").isEmpty());
+		assertTrue(trie.removePrefix("coap://host/a/b").isEmpty());
+		assertEquals(1, trie.size());
+	}
+
+	@Test
+	public void remove_host_whatever_scheme_and_port() throws Exception {
+		add("coap://host/a", "coaps://host/a", "coap://host:5690/b", "coap://user@host/c", "coap://hostX/a",
+				"coap://[::1]/a", "coap://[::1]:5690/b");
+
+		assertEquals(set("coap://host/a", "coaps://host/a", "coap://host:5690/b", "coap://user@host/c"),
+				set(trie.removeHost("HOST")));
+		assertEquals(set("coap://[::1]/a", "coap://[::1]:5690/b"), set(trie.removeHost("[::1]")));
+		assertEquals(1, trie.size());
+	}
+
+	@Test
+	public void remove_tag() throws Exception {
+		add("coap://host/a", "coap://host/b", "coap://other/c");
+		trie.tag("coap://host/a", "t1");
+		trie.tag("coap://other/c", "t1");
+		trie.tag("coap://host/b", "t2");
+		// not added, not tagged
+		trie.tag("coap://host/d", "t1");
+
+		assertEquals(set("coap://host/a", "coap://other/c"), set(trie.removeTag("t1")));
+		assertTrue(trie.removeTag("t1").isEmpty());
+		assertTrue(trie.removeTag("unknown").isEmpty());
+		assertEquals(1, trie.size());
+	}
+
+	@Test
+	public void removal_forgets_tags() throws Exception {
+		add("coap://host/a", "coap://host/b", "coap://host/c");
+		trie.tag("coap://host/a", "t");
+		trie.tag("coap://host/b", "t");
+		trie.tag("coap://host/c", "t");
+
+		trie.remove("coap://host/a");
+		trie.removePrefix("coap://host/b");
+		trie.removeHost("host");
+		// added again, without tag
+		trie.add("coap://host/a");
+
+		assertTrue(trie.removeTag("t").isEmpty());
+		assertEquals(1, trie.size());
+	}
+
+	@Test
+	public void removal_prunes_empty_nodes() throws Exception {
+		add("coap://host/a", "coap://host/a/b/c/d");
+
+		trie.remove("coap://host/a/b/c/d");
+
+		// the nodes of b and c are gone with d, so a is left alone
+		assertEquals(set("coap://host/a"), set(trie.removePrefix("coap://host/a")));
+		assertTrue(trie.removePrefix("coap://host/").isEmpty());
+		assertEquals(0, trie.size());
+
+		// the pruned path can be added again
+		add("coap://host/a/b/c/d");
+		assertEquals(set("coap://host/a/b/c/d"), set(trie.removePrefix("coap://host/a/b")));
+	}
+
+	@Test
+	public void clear_removes_everything() throws Exception {
+		add("coap://host/a", "coap://other/b");
+		trie.tag("coap://host/a", "t");
+
+		trie.clear();
+
+		assertEquals(0, trie.size());
+		assertTrue(trie.removeTag("t").isEmpty());
+		assertTrue(trie.removeHost("other").isEmpty());
+	}
+
+	@Test
+	public void relative_uri_is_single_segment() throws Exception {
+		add("not a uri", "not a uri/a");
+
+		assertEquals(set("not a uri"), set(trie.removePrefix("not a uri")));
+		assertEquals(1, trie.size());
+	}
+
+	private void add(String... uris) {
+		for (String uri : uris) {
+			trie.add(uri);
+		}
+	}
+
+	private static Set<String> set(String... uris) {
+		return set(Arrays.asList(uris));
+	}
+
+	private static Set<String> set(Collection<String> uris) {
+		Set<String> set = new HashSet<String>(uris);
+		assertEquals("duplicated uris " + uris, uris.size(), set.size());
+		return set;
+	}
+}